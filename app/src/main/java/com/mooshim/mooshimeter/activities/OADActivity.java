@@ -81,6 +81,7 @@ import com.mooshim.mooshimeter.devices.BLEDeviceBase;
 import com.mooshim.mooshimeter.devices.MooshimeterDeviceBase;
 import com.mooshim.mooshimeter.interfaces.NotifyHandler;
 import com.mooshim.mooshimeter.devices.OADDevice;
+import com.mooshim.mooshimeter.devices.PeripheralWrapper;
 import com.mooshim.mooshimeter.common.Util;
 
 import java.util.concurrent.Semaphore;
@@ -504,6 +505,8 @@ public class OADActivity extends MyActivity {
 
         // If uploading in legacy mode, scale back on the speed substantially.
         blockPacer = new Semaphore(legacy_mode ? 0:8);
+        // Outside legacy mode, stream blocks without waiting for each write to be acknowledged
+        m.mPwrap.setWriteCredits(legacy_mode ? 0 : PeripheralWrapper.DEFAULT_WRITE_CREDITS);
 
         // Update connection parameters
         //mMeter.setConnectionInterval((short) 20, (short) 1000);
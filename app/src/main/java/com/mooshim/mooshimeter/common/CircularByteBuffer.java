@@ -0,0 +1,145 @@
+package com.mooshim.mooshimeter.common;
+
+import java.nio.BufferUnderflowException;
+
+/**
+ * A growable circular byte buffer with a little endian read cursor.
+ * Reads past the end of the written data throw BufferUnderflowException (like ByteBuffer),
+ * and the read cursor can be rolled back to the last mark() so a partially received
+ * message can be re-parsed once more bytes arrive.  Writing discards the mark.
+ * Not thread safe - it is meant to be owned by a single consumer thread.
+ */
+public class CircularByteBuffer {
+    private byte[] buf;
+    private int mask;
+    // Read and write indices increase monotonically and are masked on access
+    private int read_i  = 0;
+    private int write_i = 0;
+    private int mark_i  = 0;
+
+    public CircularByteBuffer(int initial_capacity) {
+        int cap = 1;
+        while(cap < initial_capacity) {
+            cap <<= 1;
+        }
+        buf  = new byte[cap];
+        mask = cap-1;
+    }
+    public CircularByteBuffer() {
+        this(256);
+    }
+
+    public int remaining() {
+        return write_i - read_i;
+    }
+    public int capacity() {
+        return buf.length;
+    }
+    public void clear() {
+        read_i  = 0;
+        write_i = 0;
+        mark_i  = 0;
+    }
+
+    //////////////////
+    // Writing
+    //////////////////
+
+    private void ensureFree(int n) {
+        int needed = remaining() + n;
+        if(needed <= buf.length) {
+            return;
+        }
+        int cap = buf.length;
+        while(cap < needed) {
+            cap <<= 1;
+        }
+        // Unroll the existing contents in to the start of the new array
+        byte[] nbuf = new byte[cap];
+        int len = remaining();
+        copyOut(read_i, nbuf, 0, len);
+        read_i  = 0;
+        write_i = len;
+        buf  = nbuf;
+        mask = cap-1;
+    }
+    public void put(byte[] src, int offset, int len) {
+        ensureFree(len);
+        mark_i = read_i;
+        int start = write_i & mask;
+        int first = Math.min(len, buf.length - start);
+        System.arraycopy(src, offset, buf, start, first);
+        System.arraycopy(src, offset + first, buf, 0, len - first);
+        write_i += len;
+    }
+    public void put(byte[] src) {
+        put(src, 0, src.length);
+    }
+
+    //////////////////
+    // Cursor control
+    //////////////////
+
+    public void mark() {
+        mark_i = read_i;
+    }
+    public void reset() {
+        read_i = mark_i;
+    }
+    public void skip(int n) {
+        require(n);
+        read_i += n;
+    }
+
+    //////////////////
+    // Little endian reads
+    //////////////////
+
+    private void require(int n) {
+        if(remaining() < n) {
+            throw new BufferUnderflowException();
+        }
+    }
+    private void copyOut(int from, byte[] dst, int offset, int len) {
+        int start = from & mask;
+        int first = Math.min(len, buf.length - start);
+        System.arraycopy(buf, start, dst, offset, first);
+        System.arraycopy(buf, 0, dst, offset + first, len - first);
+    }
+    // The byte offset bytes past the read cursor, without moving it
+    public byte peek(int offset) {
+        require(offset+1);
+        return buf[(read_i+offset) & mask];
+    }
+    public byte get() {
+        require(1);
+        return buf[(read_i++) & mask];
+    }
+    public short getShort() {
+        require(2);
+        int rval = (buf[read_i & mask] & 0xFF)
+                | ((buf[(read_i+1) & mask]) << 8);
+        read_i += 2;
+        return (short)rval;
+    }
+    public int getInt() {
+        require(4);
+        int rval = (buf[read_i & mask] & 0xFF)
+                | ((buf[(read_i+1) & mask] & 0xFF) << 8)
+                | ((buf[(read_i+2) & mask] & 0xFF) << 16)
+                | ((buf[(read_i+3) & mask]) << 24);
+        read_i += 4;
+        return rval;
+    }
+    public float getFloat() {
+        return Float.intBitsToFloat(getInt());
+    }
+    public void get(byte[] dst, int offset, int len) {
+        require(len);
+        copyOut(read_i, dst, offset, len);
+        read_i += len;
+    }
+    public void get(byte[] dst) {
+        get(dst, 0, dst.length);
+    }
+}
@@ -4,16 +4,19 @@ package com.mooshim.mooshimeter.common;
  * Created by First on 2/12/2016.
  */
 public class CooldownTimer {
-    public boolean expired=true;
+    public volatile boolean expired=true;
+    private TimerWheel.Timeout pending = null;
     private Runnable cb = new Runnable() {
         @Override
         public void run() {
             expired=true;
         }
     };
-    public void fire(int ms) {
-        Util.cancelDelayedCB(cb);
-        Util.postDelayed(cb,ms);
+    public synchronized void fire(int ms) {
+        if(pending!=null) {
+            pending.cancel();
+        }
         expired = false;
+        pending = Util.schedule(cb,ms);
     }
 }
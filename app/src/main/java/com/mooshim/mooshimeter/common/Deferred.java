@@ -0,0 +1,212 @@
+package com.mooshim.mooshimeter.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous request that completes some time later.
+ * Supports an optional timeout, cancellation, completion callbacks and chaining.
+ * Callbacks run on whichever thread completes the Deferred (for meter responses that's the
+ * cb_thread, for timeouts it's the timer wheel's own thread), so keep them short and don't block
+ * in them.
+ */
+public class Deferred<T> implements Future<T> {
+    public static final int PENDING   = 0;
+    public static final int SUCCEEDED = 1;
+    public static final int TIMED_OUT = 2;
+    public static final int CANCELLED = 3;
+    public static final int FAILED    = 4;
+
+    public static abstract class Callback<T> {
+        public abstract void onDone(Deferred<T> d);
+    }
+    public static abstract class Chain<T,R> {
+        // Called with the result of the previous step, returns the next step
+        public abstract Deferred<R> next(T value);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Callback<T>> callbacks = new ArrayList<>();
+    private int state = PENDING;
+    private T value = null;
+    private TimerWheel.Timeout timeout_future = null;
+
+    public Deferred() {}
+
+    public static <T> Deferred<T> failed() {
+        Deferred<T> rval = new Deferred<>();
+        rval.fail();
+        return rval;
+    }
+    public static <T> Deferred<T> succeeded(T value) {
+        Deferred<T> rval = new Deferred<>();
+        rval.complete(value);
+        return rval;
+    }
+
+    /**
+     * Arrange for this Deferred to time out if it has not completed within ms milliseconds
+     */
+    public Deferred<T> withTimeout(int ms) {
+        TimerWheel.Timeout f = Util.scheduleInline(new Runnable() {
+            @Override
+            public void run() {
+                finish(TIMED_OUT, null);
+            }
+        }, ms);
+        synchronized (this) {
+            if(state==PENDING) {
+                timeout_future = f;
+                return this;
+            }
+        }
+        f.cancel();
+        return this;
+    }
+
+    //////////////////
+    // Completion
+    //////////////////
+
+    private boolean finish(int new_state, T new_value) {
+        List<Callback<T>> to_call;
+        synchronized (this) {
+            if(state!=PENDING) {
+                return false;
+            }
+            state = new_state;
+            value = new_value;
+            if(timeout_future!=null) {
+                timeout_future.cancel();
+                timeout_future = null;
+            }
+            to_call = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        done.countDown();
+        for(Callback<T> cb:to_call) {
+            cb.onDone(this);
+        }
+        return true;
+    }
+    public boolean complete(T new_value) {
+        return finish(SUCCEEDED, new_value);
+    }
+    public boolean fail() {
+        return finish(FAILED, null);
+    }
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(CANCELLED, null);
+    }
+
+    //////////////////
+    // Status
+    //////////////////
+
+    public synchronized int getState() {
+        return state;
+    }
+    public synchronized boolean succeeded() {
+        return state==SUCCEEDED;
+    }
+    @Override
+    public synchronized boolean isCancelled() {
+        return state==CANCELLED;
+    }
+    @Override
+    public synchronized boolean isDone() {
+        return state!=PENDING;
+    }
+    // Value if succeeded, null otherwise.  Does not block.
+    public synchronized T getNow() {
+        return value;
+    }
+
+    //////////////////
+    // Callbacks and chaining
+    //////////////////
+
+    public Deferred<T> onDone(Callback<T> cb) {
+        synchronized (this) {
+            if(state==PENDING) {
+                callbacks.add(cb);
+                return this;
+            }
+        }
+        cb.onDone(this);
+        return this;
+    }
+
+    /**
+     * Start another request once this one succeeds.  If this one fails, times out or is
+     * cancelled, the returned Deferred finishes the same way and next is never called.
+     */
+    public <R> Deferred<R> then(final Chain<T,R> next) {
+        final Deferred<R> rval = new Deferred<>();
+        onDone(new Callback<T>() {
+            @Override
+            public void onDone(Deferred<T> d) {
+                if(!d.succeeded()) {
+                    rval.finish(d.getState(), null);
+                    return;
+                }
+                next.next(d.getNow()).onDone(new Callback<R>() {
+                    @Override
+                    public void onDone(Deferred<R> d2) {
+                        rval.finish(d2.getState(), d2.getNow());
+                    }
+                });
+            }
+        });
+        return rval;
+    }
+
+    //////////////////
+    // Blocking access
+    //////////////////
+
+    /**
+     * Block until done.
+     * @return true if the request succeeded
+     */
+    public boolean await() {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+        return succeeded();
+    }
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getOrThrow();
+    }
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getOrThrow();
+    }
+    private synchronized T getOrThrow() throws ExecutionException {
+        switch(state) {
+            case SUCCEEDED:
+                return value;
+            case CANCELLED:
+                throw new CancellationException();
+            case TIMED_OUT:
+                throw new ExecutionException(new TimeoutException());
+            default:
+                throw new ExecutionException(new Exception("Request failed"));
+        }
+    }
+}
@@ -4,7 +4,6 @@ import android.util.Log;
 
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -25,6 +24,16 @@ public class Dispatcher {
         thread_name = name_arg;
     }
 
+    /**
+     * @param exit_when_idle let the thread go after a second with nothing queued, and start a
+     *                       fresh one on the next dispatch.  For lanes that belong to an object
+     *                       nobody will remember to shut down.
+     */
+    public Dispatcher(String name_arg, boolean exit_when_idle) {
+        thread_name = name_arg;
+        worker.allowCoreThreadTimeOut(exit_when_idle);
+    }
+
     private final class NamedThreadFactory implements ThreadFactory {
         public Thread newThread(Runnable r) {
             lock.lock();
@@ -34,7 +43,7 @@ public class Dispatcher {
         }
     }
     private final BlockingQueue<Runnable> worker_tasks = new LinkedBlockingQueue<Runnable>();
-    private final ExecutorService worker = new ThreadPoolExecutor(
+    private final ThreadPoolExecutor worker = new ThreadPoolExecutor(
             1,  // Number of worker threads to run
             1,  // Maximum number of worker threads to run
             1,  // Timeout
@@ -66,6 +75,10 @@ public class Dispatcher {
         // until the task is complete.  Maybe return it?
         worker.submit(wrap);
     }
+    // Finish what's queued, then let the thread go.  Nothing may be dispatched afterwards.
+    public void shutdown() {
+        worker.shutdown();
+    }
     public boolean isCallingThread() {
         boolean rval;
         lock.lock();
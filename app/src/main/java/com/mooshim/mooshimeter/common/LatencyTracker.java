@@ -0,0 +1,140 @@
+package com.mooshim.mooshimeter.common;
+
+/**
+ * Tracks the latency of one kind of operation on one connection and derives a timeout from it.
+ * Keeps a smoothed mean and mean deviation the way TCP does for round trip times, plus a p99
+ * estimate from a decaying histogram with buckets spaced by sqrt(2), so a few slow outliers
+ * raise the timeout without one lucky fast sample dropping it.
+ *
+ * Until MIN_SAMPLES latencies have been seen the default timeout is used.  A timeout doubles the
+ * next derived timeout (up to 4x) until an operation completes again, so a congested link backs
+ * off instead of timing out over and over.  Thread safe.
+ */
+public class LatencyTracker {
+    public static final int MIN_SAMPLES = 8;
+    // EWMA gains, as in RFC 6298
+    private static final double ALPHA = 1.0/8;
+    private static final double BETA  = 1.0/4;
+    // Bucket i counts latencies below 2^((i+1)/2) ms, the last one catches everything longer
+    private static final int N_BUCKETS = 36;
+    // Halve the histogram this often so it follows the link as conditions change
+    private static final int DECAY_EVERY = 256;
+    private static final int MAX_BACKOFF = 4;
+
+    private final String name;
+    private final int default_ms;
+    private final int floor_ms;
+    private final int ceiling_ms;
+
+    private double mean_ms = 0;
+    private double dev_ms  = 0;
+    private final int[] buckets = new int[N_BUCKETS];
+    private int in_histogram = 0;
+    private int since_decay  = 0;
+    private long n_samples   = 0;
+    private long n_timeouts  = 0;
+    private int backoff      = 1;
+
+    /**
+     * @param default_ms timeout to use before there's enough data, normally the old fixed value
+     * @param floor_ms   never time out faster than this
+     * @param ceiling_ms never wait longer than this
+     */
+    public LatencyTracker(String name_arg, int default_ms_arg, int floor_ms_arg, int ceiling_ms_arg) {
+        name       = name_arg;
+        default_ms = default_ms_arg;
+        floor_ms   = floor_ms_arg;
+        ceiling_ms = ceiling_ms_arg;
+    }
+
+    private static int bucketOf(double ms) {
+        if(ms < 1) {
+            return 0;
+        }
+        int i = (int)(2*Math.log(ms)/Math.log(2));
+        return Math.min(i, N_BUCKETS-1);
+    }
+    private static double bucketCeiling(int i) {
+        return Math.pow(2, (i+1)/2.0);
+    }
+
+    public synchronized void record(double ms) {
+        if(n_samples==0) {
+            mean_ms = ms;
+            dev_ms  = ms/2;
+        } else {
+            dev_ms  += BETA *(Math.abs(ms-mean_ms) - dev_ms);
+            mean_ms += ALPHA*(ms-mean_ms);
+        }
+        n_samples++;
+        backoff = 1;
+        buckets[bucketOf(ms)]++;
+        in_histogram++;
+        if(++since_decay >= DECAY_EVERY) {
+            since_decay = 0;
+            in_histogram = 0;
+            for(int i = 0; i < N_BUCKETS; i++) {
+                buckets[i] >>= 1;
+                in_histogram += buckets[i];
+            }
+        }
+    }
+    // Convenience for timing with System.nanoTime()
+    public void recordSince(long start_ns) {
+        record((System.nanoTime()-start_ns)/1e6);
+    }
+    public synchronized void recordTimeout() {
+        n_timeouts++;
+        backoff = Math.min(backoff*2, MAX_BACKOFF);
+    }
+
+    public synchronized double getMeanMs() {
+        return mean_ms;
+    }
+    public synchronized double getDeviationMs() {
+        return dev_ms;
+    }
+    /**
+     * @return the latency 99% of recent operations came in under, rounded up to a bucket edge.
+     *         0 if nothing has been recorded.
+     */
+    public synchronized double getP99Ms() {
+        if(in_histogram==0) {
+            return 0;
+        }
+        int allowed_above = in_histogram/100;
+        int seen = 0;
+        for(int i = N_BUCKETS-1; i >= 0; i--) {
+            seen += buckets[i];
+            if(seen > allowed_above) {
+                return bucketCeiling(i);
+            }
+        }
+        return bucketCeiling(0);
+    }
+    public synchronized long getSampleCount() {
+        return n_samples;
+    }
+    public synchronized long getTimeoutCount() {
+        return n_timeouts;
+    }
+
+    /**
+     * @return how long to wait for the next operation before giving up on it
+     */
+    public synchronized int getTimeoutMs() {
+        double t;
+        if(n_samples < MIN_SAMPLES) {
+            t = default_ms;
+        } else {
+            t = Math.max(mean_ms + 4*dev_ms, 1.5*getP99Ms());
+        }
+        t *= backoff;
+        return (int)Math.max(floor_ms, Math.min(ceiling_ms, t));
+    }
+
+    public synchronized String toString() {
+        return String.format("%s: mean %.1fms dev %.1fms p99 %.0fms timeout %dms (%d samples, %d timeouts)",
+                name, mean_ms, dev_ms, getP99Ms(), getTimeoutMs(), n_samples, n_timeouts);
+    }
+}
@@ -0,0 +1,121 @@
+package com.mooshim.mooshimeter.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size single-producer/single-consumer ring of preallocated frame slots.
+ * The producer copies each frame in to the next free slot, the consumer drains every filled
+ * slot in one pass.  Neither side locks or allocates.  When the ring is full the new frame is
+ * dropped and counted as an overrun, so a stalled consumer can never block the producer.
+ * Exactly one thread may call offer() and exactly one (possibly different) thread may call drain().
+ */
+public class NotifyRing {
+    /**
+     * Receives frames from drain().  buf is the ring's own slot and is reused once onFrame returns,
+     * so copy anything that needs to outlive the call.
+     */
+    public static abstract class Sink {
+        public abstract void onFrame(Object key, double timestamp, byte[] buf, int len);
+    }
+
+    private final int mask;
+    private final byte[][] data;
+    private final int[] len;
+    private final Object[] key;
+    private final double[] timestamp;
+    // Monotonic slot counters, masked on access.  head is only written by the producer, tail only by
+    // the consumer.  lazySet publishes the slot contents before the counter moves.
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+    // Written only by the producer
+    private volatile long overruns = 0;
+    private volatile long oversized = 0;
+    private volatile int high_water = 0;
+
+    public NotifyRing(int n_slots, int slot_size) {
+        int cap = 1;
+        while(cap < n_slots) {
+            cap <<= 1;
+        }
+        mask      = cap-1;
+        data      = new byte[cap][slot_size];
+        len       = new int[cap];
+        key       = new Object[cap];
+        timestamp = new double[cap];
+    }
+
+    //////////////////
+    // Producer side
+    //////////////////
+
+    /**
+     * Copy frame in to the ring.
+     * @return false if the frame was dropped because the ring was full or the frame too big for a slot
+     */
+    public boolean offer(Object k, double ts, byte[] frame) {
+        long h = head.get();
+        int used = (int)(h - tail.get());
+        if(used >= data.length) {
+            overruns++;
+            return false;
+        }
+        int i = (int)h & mask;
+        if(frame.length > data[i].length) {
+            oversized++;
+            return false;
+        }
+        System.arraycopy(frame, 0, data[i], 0, frame.length);
+        len[i]       = frame.length;
+        key[i]       = k;
+        timestamp[i] = ts;
+        head.lazySet(h+1);
+        if(used+1 > high_water) {
+            high_water = used+1;
+        }
+        return true;
+    }
+
+    //////////////////
+    // Consumer side
+    //////////////////
+
+    /**
+     * Hand every frame in the ring to sink, oldest first.  Frames offered while draining are
+     * included if they land before the drain catches up.
+     * @return the number of frames drained
+     */
+    public int drain(Sink sink) {
+        long t = tail.get();
+        int n = 0;
+        while(t != head.get()) {
+            int i = (int)t & mask;
+            sink.onFrame(key[i], timestamp[i], data[i], len[i]);
+            key[i] = null;
+            t++;
+            n++;
+            // Free each slot as soon as it's consumed so the producer sees the space early
+            tail.lazySet(t);
+        }
+        return n;
+    }
+
+    //////////////////
+    // Stats, safe from any thread
+    //////////////////
+
+    public int size() {
+        return (int)(head.get() - tail.get());
+    }
+    public int capacity() {
+        return data.length;
+    }
+    public int getHighWater() {
+        return high_water;
+    }
+    public long getOverruns() {
+        return overruns;
+    }
+    public long getOversized() {
+        return oversized;
+    }
+}
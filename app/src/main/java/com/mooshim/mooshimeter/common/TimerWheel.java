@@ -0,0 +1,303 @@
+package com.mooshim.mooshimeter.common;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel for the periodic device housekeeping (heartbeats, RSSI polls, deferred
+ * notification disables) so none of it has to go through the main Looper.
+ *
+ * Timeouts hash in to one of n_slots buckets by their expiry tick; ones further out than a full
+ * rotation carry a count of rotations left.  Scheduling and cancelling are O(1).  The wheel thread
+ * sleeps until the next occupied bucket rather than waking every tick, and not at all when the
+ * wheel is empty.  Expired tasks run on a small pool, not the wheel thread, so a task that blocks
+ * on a GATT operation doesn't hold up every other meter's timers.  Once every pool thread is busy
+ * further tasks queue up behind them.  So anything that other tasks may be waiting on, such as a
+ * request timeout, is scheduled with scheduleInline and runs on the wheel thread itself; it must
+ * never block.
+ *
+ * A periodic task is re-armed when it comes due.  If its previous run hasn't finished by then,
+ * that occurrence is skipped rather than run on top of it.
+ *
+ * Resolution is one tick: a task runs between delay and delay+tick_ms after it was scheduled.
+ */
+public class TimerWheel {
+    private static final String TAG = "TimerWheel";
+
+    private static final int PENDING   = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED   = 2;
+
+    // Pool threads running expired tasks
+    public static final int MAX_TASK_THREADS = 4;
+
+    /**
+     * Handle for a scheduled task
+     */
+    public final class Timeout {
+        private final Runnable task;
+        // 0 for a one shot task
+        private final int period_ms;
+        // Runs on the wheel thread instead of the pool
+        private final boolean inline;
+        // A periodic task's last run hasn't returned yet
+        private boolean running = false;
+        private int rounds;
+        private int bucket;
+        private int state = PENDING;
+        private Timeout prev = null;
+        private Timeout next = null;
+
+        private Timeout(Runnable task_arg, int period_ms_arg, boolean inline_arg) {
+            task = task_arg;
+            period_ms = period_ms_arg;
+            inline = inline_arg;
+        }
+        /**
+         * A run already in progress is not interrupted.
+         * @return true if the task had not run yet (or for a periodic task, was still scheduled)
+         *         and now never will
+         */
+        public boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if(state!=PENDING) {
+                    return false;
+                }
+                state = CANCELLED;
+                unlink(this);
+                return true;
+            }
+        }
+        public boolean isPending() {
+            synchronized (TimerWheel.this) {
+                return state==PENDING;
+            }
+        }
+    }
+
+    private final String name;
+    private final long tick_ns;
+    private final int mask;
+    // Head of each bucket's doubly linked list
+    private final Timeout[] buckets;
+    private int n_pending = 0;
+    private final long start_ns = System.nanoTime();
+    // Every bucket up to and including this tick has been expired
+    private long processed_tick = 0;
+    private Thread worker = null;
+    private final List<Timeout> expired = new ArrayList<>();
+    private int n_skipped = 0;
+
+    private final ThreadPoolExecutor runner;
+
+    public TimerWheel(String name_arg, int tick_ms, int n_slots) {
+        name = name_arg;
+        tick_ns = tick_ms*1000000L;
+        int cap = 1;
+        while(cap < n_slots) {
+            cap <<= 1;
+        }
+        mask = cap-1;
+        buckets = new Timeout[cap];
+        runner = new ThreadPoolExecutor(MAX_TASK_THREADS, MAX_TASK_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "_task");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        runner.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run task once, delay_ms from now
+     */
+    public synchronized Timeout schedule(Runnable task, int delay_ms) {
+        Timeout t = new Timeout(task, 0, false);
+        link(t, delay_ms);
+        return t;
+    }
+
+    /**
+     * Run task once, delay_ms from now, on the wheel thread.  It must be short and must not block,
+     * every other timer waits for it.  Use this for timeouts that wake tasks blocked on the pool.
+     */
+    public synchronized Timeout scheduleInline(Runnable task, int delay_ms) {
+        Timeout t = new Timeout(task, 0, true);
+        link(t, delay_ms);
+        return t;
+    }
+
+    /**
+     * Run task delay_ms from now, then every period_ms until cancelled through the returned handle
+     */
+    public synchronized Timeout schedulePeriodic(Runnable task, int delay_ms, int period_ms) {
+        Timeout t = new Timeout(task, Math.max(period_ms, 1), false);
+        link(t, delay_ms);
+        return t;
+    }
+
+    public synchronized int size() {
+        return n_pending;
+    }
+
+    // How many periodic runs were dropped because the previous one was still going
+    public synchronized int getSkippedCount() {
+        return n_skipped;
+    }
+
+    // Call with the wheel locked
+    private void link(Timeout t, int delay_ms) {
+        t.state = PENDING;
+        // First tick boundary at or after the deadline, and never one that's already been processed
+        long deadline_ns = System.nanoTime() - start_ns + delay_ms*1000000L;
+        long target = Math.max(processed_tick+1, (deadline_ns + tick_ns - 1)/tick_ns);
+        t.rounds = (int)((target - processed_tick - 1) >> Integer.numberOfTrailingZeros(buckets.length));
+        t.bucket = (int)(target & mask);
+        t.next = buckets[t.bucket];
+        if(t.next!=null) {
+            t.next.prev = t;
+        }
+        buckets[t.bucket] = t;
+        n_pending++;
+        if(worker==null) {
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, name);
+            worker.setDaemon(true);
+            worker.start();
+        } else {
+            // It may be sleeping until something later than this
+            notifyAll();
+        }
+    }
+
+    private long currentTick() {
+        return (System.nanoTime() - start_ns)/tick_ns;
+    }
+
+    // Call with the wheel locked
+    private void unlink(Timeout t) {
+        if(t.prev!=null) {
+            t.prev.next = t.next;
+        } else {
+            buckets[t.bucket] = t.next;
+        }
+        if(t.next!=null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+        n_pending--;
+    }
+
+    // Call with the wheel locked.  Moves everything due in this tick's bucket to expired.
+    private void expireBucket(long tick) {
+        Timeout t = buckets[(int)(tick & mask)];
+        while(t!=null) {
+            Timeout next = t.next;
+            if(t.rounds>0) {
+                t.rounds--;
+            } else {
+                unlink(t);
+                t.state = EXPIRED;
+                expired.add(t);
+            }
+            t = next;
+        }
+    }
+
+    // Call with the wheel locked.  How long until the next occupied bucket comes up, 0 to wait forever.
+    private long nanosUntilNextBucket() {
+        if(n_pending==0) {
+            return 0;
+        }
+        for(int i = 1; i <= buckets.length; i++) {
+            if(buckets[(int)((processed_tick+i) & mask)]!=null) {
+                long due_ns = start_ns + (processed_tick+i)*tick_ns;
+                return Math.max(1, due_ns - System.nanoTime());
+            }
+        }
+        return 0;
+    }
+
+    private void loop() {
+        List<Timeout> to_run = new ArrayList<>();
+        while(true) {
+            synchronized (this) {
+                long now_tick = currentTick();
+                while(processed_tick < now_tick) {
+                    processed_tick++;
+                    expireBucket(processed_tick);
+                }
+                for(Timeout t : expired) {
+                    if(t.period_ms>0) {
+                        link(t, t.period_ms);
+                        if(t.running) {
+                            n_skipped++;
+                            Log.d(TAG, "Skipping a run of a periodic task still in flight on " + name);
+                            continue;
+                        }
+                        t.running = true;
+                    }
+                    to_run.add(t);
+                }
+                expired.clear();
+                if(to_run.isEmpty()) {
+                    long wait_ns = nanosUntilNextBucket();
+                    try {
+                        if(wait_ns==0) {
+                            wait();
+                        } else {
+                            wait(wait_ns/1000000, (int)(wait_ns%1000000));
+                        }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                    continue;
+                }
+            }
+            for(final Timeout t : to_run) {
+                if(t.inline) {
+                    try {
+                        t.task.run();
+                    } catch (Exception e) {
+                        Log.e(TAG, "Exception in inline timer task on " + name);
+                        e.printStackTrace();
+                    }
+                    continue;
+                }
+                runner.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            t.task.run();
+                        } catch (Exception e) {
+                            Log.e(TAG, "Exception in timer task on " + name);
+                            e.printStackTrace();
+                        } finally {
+                            if(t.period_ms>0) {
+                                synchronized (TimerWheel.this) {
+                                    t.running = false;
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+            to_run.clear();
+        }
+    }
+}
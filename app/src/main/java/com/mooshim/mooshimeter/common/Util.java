@@ -146,6 +146,9 @@ public class Util {
 
     private static Dispatcher bg_dispatcher = new Dispatcher("bg_thread"); // bg=Background
     private static Dispatcher cb_dispatcher = new Dispatcher("cb_thread"); // cb=Callback
+    // 10ms ticks, fine enough for the request timeouts and the serin batch deadline.  Anything
+    // further out than one 10.24s rotation just waits out extra rounds.
+    private static TimerWheel timer_wheel = new TimerWheel("timer_wheel", 10, 1024);
 
     public static void dispatch(Runnable r) {
         bg_dispatcher.dispatch(r);
@@ -176,6 +179,28 @@ public class Util {
         getHandlerForPresentActivity().removeCallbacks(r);
     }
 
+    /**
+     * Run r once on a pool thread, ms from now.  For device housekeeping that shouldn't wake the
+     * main thread.  Cancel through the returned handle.
+     */
+    public static TimerWheel.Timeout schedule(Runnable r, int ms) {
+        return timer_wheel.schedule(r, ms);
+    }
+    /**
+     * Run r once on the timer thread itself, ms from now.  r must not block: it's for completing
+     * timeouts that pool tasks may be waiting on.
+     */
+    public static TimerWheel.Timeout scheduleInline(Runnable r, int ms) {
+        return timer_wheel.scheduleInline(r, ms);
+    }
+    /**
+     * Run r ms from now and every period_ms after that, until cancelled.  A run is skipped if the
+     * last one is still going.
+     */
+    public static TimerWheel.Timeout schedulePeriodic(Runnable r, int ms, int period_ms) {
+        return timer_wheel.schedulePeriodic(r, ms, period_ms);
+    }
+
     public static void setText(final TextView v,final CharSequence s) {
         CharSequence cached = v.getText();
         if(     cached != null
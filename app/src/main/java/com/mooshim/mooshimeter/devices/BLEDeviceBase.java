@@ -25,6 +25,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import com.mooshim.mooshimeter.common.TimerWheel;
 import com.mooshim.mooshimeter.common.Util;
 
 import java.util.UUID;
@@ -53,6 +54,7 @@ public class BLEDeviceBase {
     public BLEDeviceBase mInstance;
     public PeripheralWrapper mPwrap;
     protected Runnable rssi_cb = null;
+    private TimerWheel.Timeout rssi_timer = null;
 
     public int              mBuildTime;
     public boolean          mOADMode;
@@ -63,26 +65,36 @@ public class BLEDeviceBase {
     }
 
     public int initialize() {
-        Util.postDelayed(RSSI_poller, 1000);
+        startRssiPolling();
         return 0;
     }
 
+    protected void startRssiPolling() {
+        if(rssi_timer!=null) {
+            rssi_timer.cancel();
+        }
+        rssi_timer = Util.schedulePeriodic(RSSI_poller, 1000, 2000);
+    }
+
     private Runnable RSSI_poller = new Runnable() {
         @Override
         public void run() {
             if(!isConnected()) {
+                rssi_timer.cancel();
                 return;
             }
             mPwrap.reqRSSI();
             if(rssi_cb!=null) {
                 rssi_cb.run();
             }
-            Util.postDelayed(RSSI_poller, 2000);
         }
     };
 
     public int disconnect() {
         mInitialized = false;
+        if(rssi_timer!=null) {
+            rssi_timer.cancel();
+        }
         return mPwrap.disconnect();
     }
 
@@ -168,6 +180,7 @@ public class BLEDeviceBase {
     // Forwarding requests to inner pwrap
     ///////////////////
     public int connect() {
+        mPwrap.setBuildTime(mBuildTime);
         return mPwrap.connect();
     }
     public int discover() {
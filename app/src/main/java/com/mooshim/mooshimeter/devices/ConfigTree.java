@@ -2,10 +2,18 @@ package com.mooshim.mooshimeter.devices;
 
 import android.util.Log;
 
+import com.mooshim.mooshimeter.common.CircularByteBuffer;
+import com.mooshim.mooshimeter.common.Deferred;
+import com.mooshim.mooshimeter.common.LatencyTracker;
+import com.mooshim.mooshimeter.common.TimerWheel;
 import com.mooshim.mooshimeter.common.Util;
+import com.mooshim.mooshimeter.interfaces.BytesNotifyHandler;
+import com.mooshim.mooshimeter.interfaces.FloatNotifyHandler;
+import com.mooshim.mooshimeter.interfaces.IntNotifyHandler;
 import com.mooshim.mooshimeter.interfaces.NotifyHandler;
-import com.mooshim.mooshimeter.common.StatLockManager;
+import com.mooshim.mooshimeter.interfaces.Transport;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
@@ -14,11 +22,15 @@ import java.util.ArrayList;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.CRC32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
@@ -32,6 +44,18 @@ public class ConfigTree {
     // STATICS
     //////////////////////
     private static String TAG = "ConfigTree";
+    // How long to wait for the meter to answer a read or write, until we've measured the link
+    public static final int DEFAULT_TIMEOUT_MS = 2000;
+    // Settings whose meaning hangs off another one: when the first node of a row changes, the
+    // meter may have reset the rest, so they are invalidated for the next delta refresh.  Nodes
+    // a tree doesn't have are ignored.
+    private static final String[][] DEPENDENTS = {
+            {"CH1:MAPPING", "CH1:RANGE_I", "CH1:ANALYSIS", "CH1:BUF_LSB2NATIVE"},
+            {"CH2:MAPPING", "CH2:RANGE_I", "CH2:ANALYSIS", "CH2:BUF_LSB2NATIVE"},
+            {"CH1:RANGE_I", "CH1:BUF_LSB2NATIVE"},
+            {"CH2:RANGE_I", "CH2:BUF_LSB2NATIVE"},
+            {"SHARED",      "CH1:RANGE_I", "CH1:BUF_LSB2NATIVE", "CH2:RANGE_I", "CH2:BUF_LSB2NATIVE"},
+    };
 
     public static class NTYPE {
         private NTYPE() {}
@@ -76,8 +100,22 @@ public class ConfigTree {
         public List<NotifyHandler> notify_handlers = new ArrayList<NotifyHandler>();
 
         private Object value = (Integer)0;
+        // Numeric nodes keep their value unboxed so streaming samples don't allocate
+        private int   value_i = 0;
+        private float value_f = 0;
+        // Monotonic time (ms) we last heard this node's value from the meter, 0 if we have no
+        // value or it has been invalidated
+        private volatile long received_ms = 0;
+        // Bumped every time a received value differs from the one we already had
+        private volatile int version = 0;
+        // Tree wide order in which values were received, so a change only invalidates what we
+        // heard before it
+        private volatile long received_seq = 0;
+        // Nodes invalidated when this one changes, see DEPENDENTS.  null if none.
+        private ConfigNode[] dependents = null;
         String cache_longname=null;
-        StatLockManager lock;
+        // Requests waiting on the next value received for this node
+        private final List<Deferred<Object>> pending = new ArrayList<>();
 
         public ConfigNode(ConfigTree tree_arg, int ntype_arg,String name_arg, List<ConfigNode> children_arg) {
             tree = tree_arg;
@@ -88,7 +126,6 @@ public class ConfigTree {
                     children.add(c);
                 }
             }
-            lock = new StatLockManager(tree.lock);
         }
         public String toString() {
             String s = "";
@@ -100,10 +137,38 @@ public class ConfigTree {
             return s;
         }
         public byte getIndex() { return (byte)parent.children.indexOf(this); }
+        public boolean isIntType() {
+            return ntype==NTYPE.CHOOSER || (ntype>=NTYPE.VAL_U8 && ntype<=NTYPE.VAL_S32);
+        }
+        public boolean isFloatType() {
+            return ntype==NTYPE.VAL_FLT;
+        }
         public Object getValue() {
+            if(isIntType()) {
+                return value_i;
+            }
+            if(isFloatType()) {
+                return value_f;
+            }
             return value;
         }
+        public int getIntValue() {
+            if(isFloatType()) {
+                return (int)value_f;
+            }
+            return value_i;
+        }
+        public float getFloatValue() {
+            if(isIntType()) {
+                return value_i;
+            }
+            return value_f;
+        }
         public void setValue(Object v) {
+            if(v instanceof Number) {
+                value_i = ((Number)v).intValue();
+                value_f = ((Number)v).floatValue();
+            }
             value = v;
         }
         public String getShortName() {
@@ -130,7 +195,7 @@ public class ConfigTree {
         }
         public String getLongName() { return getLongName(":"); }
         public ConfigNode getChosen() {
-            ConfigNode rval = children.get((Integer) value);
+            ConfigNode rval = children.get(value_i);
             while(rval.ntype==NTYPE.LINK) {
                 rval = tree.getNode(rval.getShortName());
             }
@@ -234,47 +299,141 @@ public class ConfigTree {
                 parent.sendValue(getIndex(),true);
             }
         }
-        public Object reqValue() {
-            // Forces a refresh of the value at this node
+        public Deferred<Object> chooseAsync() {
+            if(parent.ntype!=NTYPE.CHOOSER) {
+                return Deferred.failed();
+            }
+            return parent.sendValueAsync(getIndex());
+        }
+        private Deferred<Object> expectResponse(int timeout_ms) {
+            Deferred<Object> d = new Deferred<>();
+            synchronized (pending) {
+                pending.add(d);
+            }
+            final long start_ns = System.nanoTime();
+            d.onDone(new Deferred.Callback<Object>() {
+                @Override
+                public void onDone(Deferred<Object> d) {
+                    if(d.succeeded()) {
+                        tree.latency.recordSince(start_ns);
+                        return;
+                    }
+                    if(d.getState()==Deferred.TIMED_OUT) {
+                        tree.latency.recordTimeout();
+                    }
+                    // Timed out or cancelled, the node's answer no longer has anywhere to go
+                    synchronized (pending) {
+                        pending.remove(d);
+                    }
+                }
+            });
+            return d.withTimeout(timeout_ms);
+        }
+        /**
+         * Requests a refresh of the value at this node without waiting for the response.
+         * The returned Deferred completes with the new value when the meter answers.
+         */
+        public Deferred<Object> reqValueAsync(int timeout_ms) {
             if(code==-1) {
                 Log.e(TAG,"Requested value for a node with no shortcode!");
                 new Exception().printStackTrace();
-                return null;
+                return Deferred.failed();
             }
-            if(!tree.pwrap.isConnected()) {
+            if(!tree.transport.isConnected()) {
                 Log.e(TAG,"Trying to interact with disconnected device!");
-                return null;
+                return Deferred.failed();
             }
-            lock.l();
+            // Register before sending so we can't miss a fast response
+            Deferred<Object> rval = expectResponse(timeout_ms);
             tree.sendBytes(new byte[]{(byte)code});
-            lock.awaitMilli(2000);
-            lock.ul();
-            return value;
+            return rval;
         }
-        public void sendValue(Object new_value, boolean blocking) {
-            if(!tree.pwrap.isConnected()) {
+        public Deferred<Object> reqValueAsync() {
+            return reqValueAsync(tree.latency.getTimeoutMs());
+        }
+        public Object reqValue() {
+            // Forces a refresh of the value at this node
+            reqValueAsync().await();
+            return getValue();
+        }
+        /**
+         * Writes a new value to this node without waiting for the response.
+         * The returned Deferred completes when the meter echoes the new value back.
+         */
+        public Deferred<Object> sendValueAsync(Object new_value, int timeout_ms) {
+            if(!tree.transport.isConnected()) {
                 Log.e(TAG,"Trying to interact with disconnected device!");
-                return;
+                return Deferred.failed();
             }
             byte[] payload = new byte[20];
-            for(int i = 0; i < 20; i++) {
-                // Zero out the buffer
-                payload[i]=0;
-            }
             ByteBuffer b = wrap(payload);
             packToSerial(b,new_value);
             payload = Arrays.copyOf(payload,b.position());
-            if(blocking) {
-                lock.l();
-            } else {
-                // Assume it will get through
-                value = new_value;
+            Deferred<Object> rval = expectResponse(timeout_ms);
+            tree.sendBytes(payload);
+            return rval;
+        }
+        public Deferred<Object> sendValueAsync(Object new_value) {
+            return sendValueAsync(new_value, tree.latency.getTimeoutMs());
+        }
+        // Typed writes for callers that already hold a primitive, no boxing or parsing involved
+        private Deferred<Object> sendNumberAsync(int val_i, float val_f) {
+            if(!tree.transport.isConnected()) {
+                Log.e(TAG,"Trying to interact with disconnected device!");
+                return Deferred.failed();
             }
+            byte[] payload = new byte[5];
+            ByteBuffer b = wrap(payload);
+            // Signify a write
+            b.put((byte)(code | 0x80));
+            switch (ntype) {
+                case NTYPE.CHOOSER:
+                case NTYPE.VAL_U8:
+                case NTYPE.VAL_S8:
+                    b.put((byte)val_i);
+                    break;
+                case NTYPE.VAL_U16:
+                case NTYPE.VAL_S16:
+                    b.putShort((short)val_i);
+                    break;
+                case NTYPE.VAL_U32:
+                case NTYPE.VAL_S32:
+                    b.putInt(val_i);
+                    break;
+                case NTYPE.VAL_FLT:
+                    b.putFloat(val_f);
+                    break;
+                default:
+                    Log.e(TAG,getLongName()+" doesn't take a number");
+                    return Deferred.failed();
+            }
+            payload = Arrays.copyOf(payload,b.position());
+            Deferred<Object> rval = expectResponse(tree.latency.getTimeoutMs());
             tree.sendBytes(payload);
+            return rval;
+        }
+        public Deferred<Object> sendIntAsync(int new_value) {
+            return sendNumberAsync(new_value, new_value);
+        }
+        public Deferred<Object> sendFloatAsync(float new_value) {
+            return sendNumberAsync((int)new_value, new_value);
+        }
+        public void sendValue(Object new_value, boolean blocking) {
             if(blocking) {
-                lock.awaitMilli(2000);
-                lock.ul();
+                sendValueAsync(new_value).await();
+                return;
+            }
+            if(!tree.transport.isConnected()) {
+                Log.e(TAG,"Trying to interact with disconnected device!");
+                return;
             }
+            byte[] payload = new byte[20];
+            ByteBuffer b = wrap(payload);
+            packToSerial(b,new_value);
+            payload = Arrays.copyOf(payload,b.position());
+            // Assume it will get through
+            setValue(new_value);
+            tree.sendBytes(payload);
         }
 
         //////////////////
@@ -292,15 +451,181 @@ public class ConfigTree {
         public void clearNotifyHandlers() {
             notify_handlers.clear();
         }
+        //////////////////
+        // Freshness
+        //////////////////
+
+        public long getReceivedTime() {
+            return received_ms;
+        }
+        public int getVersion() {
+            return version;
+        }
+        public boolean isStale(long max_age_ms) {
+            return received_ms==0 || System.nanoTime()/1000000 - received_ms > max_age_ms;
+        }
+        // Forget when we heard this value so the next delta refresh reads it again
+        public void invalidate() {
+            received_ms = 0;
+        }
+        /**
+         * This node just changed to a value received at change_seq.  The settings that depend on
+         * it (eg. CH1:RANGE_I after CH1:MAPPING) are read again on the next delta refresh, unless
+         * we've already heard from them since the change.
+         */
+        private void invalidateDependents(long change_seq) {
+            ConfigNode[] deps = dependents;
+            if(deps==null) {
+                return;
+            }
+            for(ConfigNode d : deps) {
+                if(d.received_seq < change_seq) {
+                    d.invalidate();
+                }
+            }
+        }
+
+        private void signalReceived(boolean changed) {
+            boolean had_value = received_ms!=0 || version!=0;
+            received_ms = System.nanoTime()/1000000;
+            received_seq = tree.receive_seq.incrementAndGet();
+            if(changed) {
+                version++;
+                if(had_value) {
+                    invalidateDependents(received_seq);
+                }
+            }
+            tree.onValueReceived(this);
+            List<Deferred<Object>> to_complete;
+            synchronized (pending) {
+                if(pending.isEmpty()) {
+                    return;
+                }
+                to_complete = new ArrayList<>(pending);
+                pending.clear();
+            }
+            Object v = getValue();
+            for(Deferred<Object> d:to_complete) {
+                d.complete(v);
+            }
+        }
         public void notify(final double time_utc, final Object notification) {
             Log.d(TAG, getLongName() + ":" + notification);
-            value = notification;
+            boolean changed = notification==null || !notification.equals(getValue());
+            setValue(notification);
             for(final NotifyHandler handler:notify_handlers) {
                 handler.onReceived(time_utc, notification);
             }
-            lock.l();
-            lock.sig();
-            lock.ul();
+            signalReceived(changed);
+        }
+        // The typed notify paths below are called for every streamed sample.  They skip the
+        // debug log and iterate by index so that nothing is allocated per call.  Handlers that
+        // only implement the boxed interface still work, they just pay for the boxing.
+        public void notify(final double time_utc, final int notification) {
+            boolean changed = value_i!=notification;
+            value_i = notification;
+            value_f = notification;
+            Object boxed = null;
+            for(int i = 0; i < notify_handlers.size(); i++) {
+                NotifyHandler handler = notify_handlers.get(i);
+                if(handler instanceof IntNotifyHandler) {
+                    ((IntNotifyHandler)handler).onInt(time_utc, notification);
+                } else {
+                    if(boxed==null) {boxed = getValue();}
+                    handler.onReceived(time_utc, boxed);
+                }
+            }
+            signalReceived(changed);
+        }
+        public void notify(final double time_utc, final float notification) {
+            boolean changed = value_f!=notification;
+            value_f = notification;
+            value_i = (int)notification;
+            Object boxed = null;
+            for(int i = 0; i < notify_handlers.size(); i++) {
+                NotifyHandler handler = notify_handlers.get(i);
+                if(handler instanceof FloatNotifyHandler) {
+                    ((FloatNotifyHandler)handler).onFloat(time_utc, notification);
+                } else {
+                    if(boxed==null) {boxed = getValue();}
+                    handler.onReceived(time_utc, boxed);
+                }
+            }
+            signalReceived(changed);
+        }
+        public void notify(final double time_utc, final byte[] notification) {
+            Log.d(TAG, getLongName() + ": " + notification.length + " bytes");
+            value = notification;
+            for(int i = 0; i < notify_handlers.size(); i++) {
+                NotifyHandler handler = notify_handlers.get(i);
+                if(handler instanceof BytesNotifyHandler) {
+                    ((BytesNotifyHandler)handler).onBytes(time_utc, notification);
+                } else {
+                    handler.onReceived(time_utc, notification);
+                }
+            }
+            signalReceived(true);
+        }
+    }
+
+    //////////////////////
+    // NODE HANDLES
+    //////////////////////
+
+    /**
+     * A precompiled reference to a node by path.  The path is resolved once and cached
+     * until the tree is rebuilt (ADMIN:TREE reload), at which point it is re-resolved on next
+     * use.  Handles stay valid across reloads, so they can be created once and held on to.
+     */
+    public static class NodeHandle {
+        private final ConfigTree tree;
+        private final String path;
+        private ConfigNode node = null;
+        private int generation = -1;
+
+        NodeHandle(ConfigTree tree_arg, String path_arg) {
+            tree = tree_arg;
+            path = path_arg;
+        }
+        public String getPath() {
+            return path;
+        }
+        public ConfigNode get() {
+            int g = tree.generation;
+            if(generation != g) {
+                node = tree.path_index.get(path);
+                generation = g;
+            }
+            return node;
+        }
+        public Object getValue() {
+            ConfigNode n = get();
+            return n==null?null:n.getValue();
+        }
+        public int getIntValue() {
+            ConfigNode n = get();
+            return n==null?0:n.getIntValue();
+        }
+        public float getFloatValue() {
+            ConfigNode n = get();
+            return n==null?0:n.getFloatValue();
+        }
+        // Requests through a handle fail immediately if the path isn't in the current tree
+        public Deferred<Object> reqValueAsync() {
+            ConfigNode n = get();
+            return n==null?Deferred.failed():n.reqValueAsync();
+        }
+        public Deferred<Object> sendValueAsync(Object new_value) {
+            ConfigNode n = get();
+            return n==null?Deferred.failed():n.sendValueAsync(new_value);
+        }
+        public Deferred<Object> sendIntAsync(int new_value) {
+            ConfigNode n = get();
+            return n==null?Deferred.failed():n.sendIntAsync(new_value);
+        }
+        public Deferred<Object> sendFloatAsync(float new_value) {
+            ConfigNode n = get();
+            return n==null?Deferred.failed():n.sendFloatAsync(new_value);
         }
     }
 
@@ -309,142 +634,494 @@ public class ConfigTree {
     //////////////////////
 
     ConfigNode root = null;
-    PeripheralWrapper pwrap = null;
+    Transport transport = null;
     UUID serin_uuid  = null;
     UUID serout_uuid = null;
     private int send_seq_n = 0;
     private int recv_seq_n = -1;
-    private List<Byte> recv_buf = new ArrayList<Byte>();
+    private CircularByteBuffer recv_buf = new CircularByteBuffer();
+    // How many bytes of recv_buf each packet contributed and when that packet arrived, oldest
+    // first.  A record is stamped with the arrival of the packet that completed it, so a batch
+    // of packets interpreted together still yields each sample at its own time.
+    private int[]    recv_seg_len = new int[16];
+    private double[] recv_seg_utc = new double[16];
+    private int recv_seg_head  = 0;
+    private int recv_seg_count = 0;
     private Map<Integer,ConfigTree.ConfigNode> code_list = null;
-    private Lock lock = new ReentrantLock(true);
+    // Full path -> node, rebuilt every time the tree structure changes
+    private volatile Map<String,ConfigNode> path_index = new HashMap<>();
+    // Incremented on every rebuild so NodeHandles know to re-resolve
+    private volatile int generation = 0;
+    // Counts values received, see ConfigNode.received_seq
+    private final AtomicLong receive_seq = new AtomicLong();
 
     ////////////////////////////////
     // NOTIFICATION CALLBACKS
     ////////////////////////////////
 
-    private void interpretAggregate(double timestamp_utc) {
-        int expecting_bytes;
-        while(recv_buf.size()>0) {
-            // FIXME: Can't find a nice way of wrapping a ByteBuffer around a list of bytes.
-            // Create a new array and copy bytes over.
-            byte[] bytes= new byte[recv_buf.size()];
-            ByteBuffer b = MooshimeterDeviceBase.wrap(bytes);
-            for(byte t:recv_buf) {
-                b.put(t);
-            }
-            b.rewind();
-            try{
-                int opcode = (int)b.get();
-                if(code_list.containsKey(opcode)) {
-                    ConfigTree.ConfigNode n = code_list.get(opcode);
-                    switch(n.ntype) {
-                        case ConfigTree.NTYPE.PLAIN  :
-                            Log.e(TAG, "Shouldn't receive notification here!");
-                            return;
-                        case ConfigTree.NTYPE.CHOOSER:
-                            n.notify(timestamp_utc, (int)b.get());
-                            break;
-                        case ConfigTree.NTYPE.LINK   :
-                            Log.e(TAG, "Shouldn't receive notification here!");
-                            return;
-                        case ConfigTree.NTYPE.VAL_U8 :
-                        case ConfigTree.NTYPE.VAL_S8 :
-                            n.notify(timestamp_utc, (int)b.get());
-                            break;
-                        case ConfigTree.NTYPE.VAL_U16:
-                        case ConfigTree.NTYPE.VAL_S16:
-                            n.notify(timestamp_utc, (int)b.getShort());
-                            break;
-                        case ConfigTree.NTYPE.VAL_U32:
-                        case ConfigTree.NTYPE.VAL_S32:
-                            n.notify(timestamp_utc, (int)b.getInt());
-                            break;
-                        case ConfigTree.NTYPE.VAL_STR:
-                            expecting_bytes = b.getShort();
-                            if(b.remaining()<expecting_bytes) {
-                                // Wait for the aggregator to fill up more
-                                return;
-                            }
-                            n.notify(timestamp_utc, new String(Arrays.copyOfRange(b.array(), b.position(), b.position() + expecting_bytes)));
-                            b.position(b.position() + expecting_bytes);
-                            break;
-                        case ConfigTree.NTYPE.VAL_BIN:
-                            expecting_bytes = b.getShort();
-                            if(b.remaining()<expecting_bytes) {
-                                // Wait for the aggregator to fill up more
-                                return;
-                            }
-                            n.notify(timestamp_utc, Arrays.copyOfRange(b.array(),b.position(),b.position()+expecting_bytes));
-                            b.position(b.position()+expecting_bytes);
-                            break;
-                        case ConfigTree.NTYPE.VAL_FLT:
-                            n.notify(timestamp_utc, b.getFloat());
-                            break;
-                    }
-                } else {
-                    Log.e(TAG,"UNRECOGNIZED SHORTCODE "+opcode);
-                    new Exception().printStackTrace();
-                    // This puts us in an awkward position.  Since we don't recognize
-                    // the shortcode, we don't know how far to advance the buffer.
-                    // Just clear it and hope for the best... FIXME
-                    recv_buf.clear();
-                    return;
-                }
-            } catch(BufferUnderflowException e){
-                Log.d(TAG,"Underflow caught");
+    private void appendReceived(byte[] packet, int offset, int len, double timestamp_utc) {
+        if(recv_seg_count==recv_seg_len.length) {
+            int[]    new_len = new int[2*recv_seg_len.length];
+            double[] new_utc = new double[2*recv_seg_len.length];
+            for(int i = 0; i < recv_seg_count; i++) {
+                int j = (recv_seg_head+i)%recv_seg_len.length;
+                new_len[i] = recv_seg_len[j];
+                new_utc[i] = recv_seg_utc[j];
+            }
+            recv_seg_len = new_len;
+            recv_seg_utc = new_utc;
+            recv_seg_head = 0;
+        }
+        int tail = (recv_seg_head+recv_seg_count)%recv_seg_len.length;
+        recv_seg_len[tail] = len;
+        recv_seg_utc[tail] = timestamp_utc;
+        recv_seg_count++;
+        recv_buf.put(packet, offset, len);
+    }
+    // Arrival time of the packet holding the byte offset bytes in to recv_buf
+    private double receivedTimeAt(int offset) {
+        for(int i = 0; i < recv_seg_count; i++) {
+            int j = (recv_seg_head+i)%recv_seg_len.length;
+            if(offset < recv_seg_len[j]) {
+                return recv_seg_utc[j];
+            }
+            offset -= recv_seg_len[j];
+        }
+        return recv_seg_count==0 ? 0 : recv_seg_utc[(recv_seg_head+recv_seg_count-1)%recv_seg_len.length];
+    }
+    // n bytes have been taken off the front of recv_buf
+    private void consumeReceived(int n) {
+        while(n>0 && recv_seg_count>0) {
+            int take = Math.min(n, recv_seg_len[recv_seg_head]);
+            recv_seg_len[recv_seg_head] -= take;
+            n -= take;
+            if(recv_seg_len[recv_seg_head]==0) {
+                recv_seg_head = (recv_seg_head+1)%recv_seg_len.length;
+                recv_seg_count--;
+            }
+        }
+    }
+    private void clearReceived() {
+        recv_buf.clear();
+        recv_seg_head  = 0;
+        recv_seg_count = 0;
+    }
+
+    private void interpretAggregate() {
+        byte[] bytes;
+        while(recv_buf.remaining()>0) {
+            if(resyncing && !resync()) {
+                return;
+            }
+            int len = recordLength(0);
+            if(len==0) {
+                // Wait for the aggregator to fill up more
                 return;
             }
-            // Advance recv_buf
-            for(int i = 0; i < b.position();i++) {
-                recv_buf.remove(0);
+            if(len<0) {
+                Log.e(TAG,"UNPARSEABLE RECORD AT SHORTCODE "+recv_buf.peek(0));
+                // We don't know how long this record is, so hunt for the next one that parses
+                resyncing = true;
+                continue;
+            }
+            double timestamp_utc = receivedTimeAt(len-1);
+            ConfigTree.ConfigNode n = code_list.get((int)recv_buf.get());
+            switch(n.ntype) {
+                case ConfigTree.NTYPE.CHOOSER:
+                case ConfigTree.NTYPE.VAL_U8 :
+                case ConfigTree.NTYPE.VAL_S8 :
+                    n.notify(timestamp_utc, (int)recv_buf.get());
+                    break;
+                case ConfigTree.NTYPE.VAL_U16:
+                case ConfigTree.NTYPE.VAL_S16:
+                    n.notify(timestamp_utc, (int)recv_buf.getShort());
+                    break;
+                case ConfigTree.NTYPE.VAL_U32:
+                case ConfigTree.NTYPE.VAL_S32:
+                    n.notify(timestamp_utc, recv_buf.getInt());
+                    break;
+                case ConfigTree.NTYPE.VAL_STR:
+                    bytes = new byte[recv_buf.getShort()];
+                    recv_buf.get(bytes);
+                    n.notify(timestamp_utc, new String(bytes));
+                    break;
+                case ConfigTree.NTYPE.VAL_BIN:
+                    bytes = new byte[recv_buf.getShort()];
+                    recv_buf.get(bytes);
+                    n.notify(timestamp_utc, bytes);
+                    break;
+                case ConfigTree.NTYPE.VAL_FLT:
+                    n.notify(timestamp_utc, recv_buf.getFloat());
+                    break;
             }
+            consumeReceived(len);
         }
     }
 
+    // Set when recv_buf may start in the middle of a record, after a lost packet or a record
+    // we couldn't parse
+    private boolean resyncing = false;
+    private boolean resync_waited = false;
+    private int n_resyncs = 0;
+    private int n_resync_bytes = 0;
+
+    // Length of the record starting offset bytes in to recv_buf.  0 if it isn't all here yet,
+    // -1 if no record can start there.
+    private int recordLength(int offset) {
+        int avail = recv_buf.remaining() - offset;
+        if(avail < 1) {
+            return 0;
+        }
+        ConfigNode n = code_list.get((int)recv_buf.peek(offset));
+        if(n==null) {
+            return -1;
+        }
+        int len;
+        switch(n.ntype) {
+            case NTYPE.CHOOSER:
+                if(avail >= 2 && (recv_buf.peek(offset+1)&0xFF) >= n.children.size()) {
+                    // No such choice
+                    return -1;
+                }
+                len = 2;
+                break;
+            case NTYPE.VAL_U8 :
+            case NTYPE.VAL_S8 :
+                len = 2;
+                break;
+            case NTYPE.VAL_U16:
+            case NTYPE.VAL_S16:
+                len = 3;
+                break;
+            case NTYPE.VAL_U32:
+            case NTYPE.VAL_S32:
+            case NTYPE.VAL_FLT:
+                len = 5;
+                break;
+            case NTYPE.VAL_STR:
+            case NTYPE.VAL_BIN:
+                if(avail < 3) {
+                    return 0;
+                }
+                int body = (short)((recv_buf.peek(offset+1)&0xFF) | (recv_buf.peek(offset+2)<<8));
+                if(body < 0) {
+                    return -1;
+                }
+                len = 3 + body;
+                break;
+            default:
+                return -1;
+        }
+        return avail < len ? 0 : len;
+    }
+
+    // How the records starting offset bytes in fit what we have.  1 if they end exactly at the end,
+    // 0 if the last one is incomplete, -1 if they don't parse.
+    private int parseFrom(int offset) {
+        while(offset < recv_buf.remaining()) {
+            int len = recordLength(offset);
+            if(len<=0) {
+                return len;
+            }
+            offset += len;
+        }
+        return 1;
+    }
+
+    /**
+     * Drop bytes until recv_buf starts on a record boundary.  Most byte values are valid
+     * shortcodes, so a single record proves little.  We take the first offset from which
+     * everything we have parses as whole records.  Failing that we wait for one more packet, then
+     * settle for the first offset that parses up to an incomplete last record.
+     * @return true once lined up, false if we need more bytes to tell
+     */
+    private boolean resync() {
+        int n = recv_buf.remaining();
+        int start = -1;
+        int first_partial = -1;
+        for(int i = 0; i < n; i++) {
+            int fit = parseFrom(i);
+            if(fit==1) {
+                start = i;
+                break;
+            }
+            if(fit==0 && first_partial==-1) {
+                first_partial = i;
+            }
+        }
+        if(start==-1) {
+            if(first_partial==-1) {
+                start = n;
+            } else if(!resync_waited) {
+                resync_waited = true;
+                return false;
+            } else {
+                start = first_partial;
+            }
+        }
+        if(start>0) {
+            recv_buf.skip(start);
+            consumeReceived(start);
+            n_resyncs++;
+            n_resync_bytes += start;
+            Log.e(TAG, "RESYNC: skipped " + start + " bytes");
+        }
+        resync_waited = false;
+        resyncing = start==n;
+        return !resyncing;
+    }
+
+    //////////////////////
+    // Serout reordering and loss detection
+    //////////////////////
+
+    // How far ahead of a missing packet we'll buffer before declaring it lost
+    public static final int REORDER_WINDOW_DEFAULT = 16;
+    // How long a packet can sit behind a missing one before the missing one is declared lost
+    public static final int REORDER_TIMEOUT_MS_DEFAULT = 250;
+
+    private int reorder_window     = REORDER_WINDOW_DEFAULT;
+    private int reorder_timeout_ms = REORDER_TIMEOUT_MS_DEFAULT;
+    private int n_lost_frames       = 0;
+    private int n_duplicate_frames  = 0;
+    private int n_reordered_frames  = 0;
+    private int n_batches           = 0;
+
+    public void setReorderLimits(int window, int timeout_ms) {
+        // Anything more than half the sequence space away is treated as a late duplicate
+        reorder_window     = Math.max(1, Math.min(window, 0x7F));
+        reorder_timeout_ms = timeout_ms;
+    }
+    public int getLostFrameCount()      { return n_lost_frames; }
+    public int getDuplicateFrameCount() { return n_duplicate_frames; }
+    public int getReorderedFrameCount() { return n_reordered_frames; }
+    // Times we had to skip bytes to find the start of a record again, and how many we skipped
+    public int getResyncCount()         { return n_resyncs; }
+    public int getResyncByteCount()     { return n_resync_bytes; }
+    // Batches of serout packets interpreted together, see NotifyHandler.onBatchStart
+    public int getBatchCount()          { return n_batches; }
+
+    // Set by reattach, the serout handler drops its reordering state when it next runs
+    private volatile boolean serout_resync = false;
+
     private NotifyHandler serout_callback = new NotifyHandler() {
-        private Map<Integer,byte[]> pbuf = new HashMap<>();
-        private void serviceBufferList(double timestamp_utc) {
-            int next_expected_seqn = (recv_seq_n+1)%0x100;
-            while(pbuf.containsKey(next_expected_seqn)) {
-                byte[] bytes = pbuf.remove(next_expected_seqn);
-                // Append to aggregate buffer
-                for(int i = 1; i < bytes.length; i++) {
-                    recv_buf.add(bytes[i]);
+        // Packets that arrived ahead of the next expected one, indexed by sequence number.  The
+        // payload we're handed is only borrowed, so it's copied in to a slot that is kept for reuse.
+        private final byte[][] pbuf = new byte[0x100][];
+        // Length of the packet in each slot, 0 if the slot is empty
+        private final int[] plen = new int[0x100];
+        private final long[] arrival_ns = new long[0x100];
+        private final double[] arrival_utc = new double[0x100];
+        private int n_buffered = 0;
+        // Fires when the oldest packet stuck behind a gap has waited reorder_timeout_ms
+        private TimerWheel.Timeout loss_timer = null;
+        // Inside a batch, packets are only appended to recv_buf.  The aggregate is interpreted
+        // once when the batch ends.
+        private int batch_depth = 0;
+        private boolean batch_pending = false;
+
+        private void deliver(int seq_n) {
+            int len = plen[seq_n];
+            plen[seq_n] = 0;
+            n_buffered--;
+            // Append to aggregate buffer, skipping the sequence number.  Records keep the time
+            // their own packet arrived, not the time of whatever packet let it be delivered.
+            appendReceived(pbuf[seq_n], 1, len - 1, arrival_utc[seq_n]);
+            if(batch_depth>0) {
+                batch_pending = true;
+            } else {
+                interpretAggregate();
+            }
+            // Advance the last received sequence number
+            Log.d(TAG, "RECV: " + seq_n + " " + len + " bytes");
+            recv_seq_n = seq_n;
+        }
+        private void serviceBufferList() {
+            int next_expected_seqn = (recv_seq_n+1)&0xFF;
+            while(plen[next_expected_seqn]!=0) {
+                deliver(next_expected_seqn);
+                next_expected_seqn = (recv_seq_n+1)&0xFF;
+            }
+        }
+        private void declareLostUpTo(int seq_n) {
+            // Give up on every missing packet before seq_n.  Packets we do have are delivered in order.
+            int next_expected_seqn = (recv_seq_n+1)&0xFF;
+            while(next_expected_seqn != seq_n) {
+                if(plen[next_expected_seqn]!=0) {
+                    deliver(next_expected_seqn);
+                } else {
+                    Log.e(TAG, "LOST PACKET: " + next_expected_seqn);
+                    n_lost_frames++;
+                    if(batch_pending) {
+                        // Complete messages from earlier in the batch are still good
+                        interpretAggregate();
+                    }
+                    // Whatever partial message was in the aggregate can never be completed.
+                    // The next packet most likely starts part way through a record, so
+                    // resync on the first whole one.
+                    clearReceived();
+                    resyncing = true;
+                    recv_seq_n = next_expected_seqn;
+                }
+                next_expected_seqn = (recv_seq_n+1)&0xFF;
+            }
+        }
+        private int oldestBuffered() {
+            for(int i = 1; i <= reorder_window; i++) {
+                int seq_n = (recv_seq_n+i)&0xFF;
+                if(plen[seq_n]!=0) {
+                    return seq_n;
                 }
-                interpretAggregate(timestamp_utc);
-                // Advance the last received sequence number
-                Log.d(TAG, "RECV: " + next_expected_seqn + " " + bytes.length + " bytes");
-                recv_seq_n = (recv_seq_n+1)%0x100;
-                next_expected_seqn = (recv_seq_n+1)%0x100;
             }
+            return -1;
         }
+        // Give up on gaps whose packets behind them have waited long enough, then arrange to come
+        // back for whatever is still waiting
+        private void checkLossTimeout() {
+            if(n_buffered==0) {
+                return;
+            }
+            int oldest = oldestBuffered();
+            if(oldest==-1) {
+                return;
+            }
+            long waited_ns = System.nanoTime()-arrival_ns[oldest];
+            if(waited_ns > reorder_timeout_ms*1000000L) {
+                declareLostUpTo(oldest);
+                serviceBufferList();
+                checkLossTimeout();
+                return;
+            }
+            if(loss_timer==null) {
+                int wait_ms = (int)(reorder_timeout_ms - waited_ns/1000000) + 1;
+                loss_timer = Util.schedule(loss_timeout, Math.max(wait_ms, 1));
+            }
+        }
+        private void cancelLossTimer() {
+            if(loss_timer!=null) {
+                loss_timer.cancel();
+                loss_timer = null;
+            }
+        }
+        // The stream may have gone quiet behind a gap, nothing else would ever declare it lost
+        private final Runnable loss_timeout = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (serout_callback) {
+                    loss_timer = null;
+                    checkLossTimeout();
+                }
+            }
+        };
         @Override
-        public void onReceived(double timestamp_utc, Object payload) {
+        public synchronized void onBatchStart() {
+            batch_depth++;
+        }
+        @Override
+        public synchronized void onBatchEnd() {
+            if(batch_depth==0) {
+                return;
+            }
+            batch_depth--;
+            if(batch_depth==0 && batch_pending) {
+                batch_pending = false;
+                n_batches++;
+                interpretAggregate();
+            }
+        }
+        @Override
+        public synchronized void onReceived(double timestamp_utc, Object payload) {
             byte[] bytes = (byte[])payload;
-            int seq_n = (int)bytes[0];
-            if(seq_n<0){
-                // Because java is stupid
-                seq_n+=0x100;
+            if(serout_resync) {
+                // First packet on a new connection, nothing from the old one will ever complete
+                serout_resync = false;
+                Arrays.fill(plen, 0);
+                n_buffered = 0;
+                cancelLossTimer();
+                batch_pending = false;
+                clearReceived();
+                resyncing = false;
+                resync_waited = false;
+                recv_seq_n = -1;
+            }
+            TraceRecorder r = trace_recorder;
+            if(r!=null) {
+                r.record(bytes);
             }
+            int seq_n = bytes[0]&0xFF;
             if(recv_seq_n==-1) {
                 // Firstrun, set up so we're expecting whatever packet number just arrived
-                recv_seq_n = seq_n-1;
-                if(recv_seq_n<0){
-                    recv_seq_n+=0x100;
-                }
+                recv_seq_n = (seq_n-1)&0xFF;
             }
-            if(pbuf.containsKey(seq_n)) {
+            int next_expected_seqn = (recv_seq_n+1)&0xFF;
+            int distance = (seq_n-next_expected_seqn)&0xFF;
+            if(distance >= 0x80 || plen[seq_n]!=0) {
+                // Either something we've already processed or already have buffered
                 Log.e(TAG, "REPEATED PACKET: " + seq_n);
                 Log.e(TAG, "DISCARDING");
+                n_duplicate_frames++;
                 return;
-            } else {
-                pbuf.put(seq_n,bytes);
             }
+            if(distance==0 && n_buffered>0) {
+                // This one filled a gap that later packets were waiting on
+                n_reordered_frames++;
+            }
+            if(distance >= reorder_window) {
+                // Too far ahead to keep waiting on the gap.  Slide the window so this packet fits.
+                declareLostUpTo((seq_n-reorder_window+1)&0xFF);
+            }
+            if(pbuf[seq_n]==null || pbuf[seq_n].length < bytes.length) {
+                pbuf[seq_n] = new byte[Math.max(bytes.length, MAX_PAYLOAD+1)];
+            }
+            System.arraycopy(bytes, 0, pbuf[seq_n], 0, bytes.length);
+            plen[seq_n] = bytes.length;
+            arrival_ns[seq_n] = System.nanoTime();
+            arrival_utc[seq_n] = timestamp_utc;
+            n_buffered++;
             // Evaluate whether we have what we need in pbuf to process the next packet
-            serviceBufferList(timestamp_utc);
+            serviceBufferList();
+            if(n_buffered==0) {
+                cancelLossTimer();
+            } else {
+                // Still stuck behind a gap.  If it's been too long, give up on it.
+                checkLossTimeout();
+            }
         }
     };
 
+    //////////////////////
+    // Protocol tracing
+    //////////////////////
+
+    private volatile TraceRecorder trace_recorder = null;
+
+    /**
+     * Start recording every serout notification to f.  See TraceRecorder for the format.
+     * @return 0 on success
+     */
+    public int startTrace(File f) {
+        stopTrace();
+        try {
+            trace_recorder = new TraceRecorder(f, getTreeBlob());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        return 0;
+    }
+    public void stopTrace() {
+        TraceRecorder r = trace_recorder;
+        trace_recorder = null;
+        if(r!=null) {
+            r.close();
+        }
+    }
+    // The handler serout notifications arrive on, for feeding packets in as if they had
+    // just arrived from the meter
+    NotifyHandler getSeroutHandler() {
+        return serout_callback;
+    }
+
     //////////////////////
     // Methods for interacting with remote device
     //////////////////////
@@ -453,20 +1130,31 @@ public class ConfigTree {
         return "TREE-CRC-"+Integer.toHexString(crc);
     }
 
-    public int attach(PeripheralWrapper p, UUID serin, UUID serout) {
-        pwrap=p;
+    public int attach(Transport t, UUID serin, UUID serout) {
+        transport=t;
         serin_uuid=serin;
         serout_uuid = serout;
-        if(0!=pwrap.enableNotify(serout, true, serout_callback)){
+        if(0!=transport.enableNotify(serout, true, serout_callback)){
             return -1;
         }
         // Grab the tree's CRC
         command("ADMIN:CRC32");
         int crcval = (Integer)getValueAt("ADMIN:CRC32");
 
-        // See if we have a stashed tree with that CRC
-        byte[] tree_bytes = Util.getPreferenceByteArray(crcToPrefKey(crcval));
-        if(tree_bytes==null) {
+        // See if we have a pre-parsed snapshot of the tree with that CRC
+        ConfigNode cached_root = TreeCache.load(this, crcval);
+        // Otherwise see if we have the compressed tree stashed
+        byte[] tree_bytes = null;
+        if(cached_root==null && Util.getRootContext()!=null) {
+            tree_bytes = Util.getPreferenceByteArray(crcToPrefKey(crcval));
+        }
+        if(cached_root!=null) {
+            Log.d(TAG, "Loaded tree from snapshot cache");
+            root = cached_root;
+            buildPathIndex();
+            onTreeReplaced();
+            getNode("ADMIN:CRC32").setValue(crcval);
+        } else if(tree_bytes==null) {
             // Load the tree from the remote device
             // This will also automatically calculate and populate ADMIN:CRC32 on our end
             command("ADMIN:TREE");
@@ -485,18 +1173,196 @@ public class ConfigTree {
         return 0;
     }
 
+    /**
+     * Attach to a transport without the CRC and tree handshake, for when the tree has already
+     * been loaded with loadTree().  Used for sources that can't answer requests, like a replayed trace.
+     */
+    public int attachPassive(Transport t, UUID serin, UUID serout) {
+        transport=t;
+        serin_uuid=serin;
+        serout_uuid = serout;
+        return transport.enableNotify(serout, true, serout_callback);
+    }
+
+    /**
+     * Pick up again on a new connection to a meter we were attached to before, keeping the tree
+     * we have so every ConfigNode and NodeHandle stays valid.  Sequence numbers start over and
+     * anything still queued for the old connection is dropped.
+     * @return 0 on success, -1 if notifications couldn't be enabled or the meter's tree has changed
+     */
+    public int reattach(Transport t, UUID serin, UUID serout) {
+        Object crc_was = getValueAt("ADMIN:CRC32");
+        if(crc_was==null) {
+            Log.e(TAG, "Nothing to reattach, the tree was never loaded");
+            return -1;
+        }
+        synchronized (send_lock) {
+            send_queue.clear();
+            send_seq_n = 0;
+        }
+        serout_resync = true;
+        if(0!=attachPassive(t, serin, serout)) {
+            return -1;
+        }
+        if(!getNode("ADMIN:CRC32").reqValueAsync().await() || !crc_was.equals(getValueAt("ADMIN:CRC32"))) {
+            Log.e(TAG, "Tree changed while we were away, can't reattach");
+            // Our tree still describes the old CRC, don't let a retry compare against the new one
+            getNode("ADMIN:CRC32").setValue(crc_was);
+            return -1;
+        }
+        command("ADMIN:CRC32 "+crc_was);
+        return 0;
+    }
+
+    //////////////////////
+    // Command batching
+    //////////////////////
+
+    // Bytes available in one serin write after the sequence number
+    private static final int MAX_PAYLOAD = 19;
+    // A batch that's been left open is flushed after this long
+    public static final int BATCH_DEADLINE_MS = 20;
+
+    // Guards the send queue and the counters below
+    private final Object send_lock = new Object();
+    // Records waiting to go out, oldest first.  At most one write per node is queued.
+    private final List<byte[]> send_queue = new ArrayList<>();
+    private int batch_depth = 0;
+    // True while some thread is draining send_queue.  Only that thread touches send_seq_n.
+    private boolean draining = false;
+    private TimerWheel.Timeout batch_deadline = null;
+    private int frames_sent  = 0;
+    private int records_sent = 0;
+    private int writes_coalesced = 0;
+    private final byte[] frame_buf = new byte[MAX_PAYLOAD];
+
+    private final Runnable batch_deadline_cb = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Between beginBatch and endBatch, commands are packed together in to as few serin
+     * writes as possible instead of each going out as its own write.  The batch is flushed
+     * on endBatch/flush, or BATCH_DEADLINE_MS after the first command was queued.  Batches nest.
+     */
+    public void beginBatch() {
+        synchronized (send_lock) {
+            batch_depth++;
+        }
+    }
+    public void endBatch() {
+        boolean flush_now;
+        synchronized (send_lock) {
+            if(batch_depth>0) {
+                batch_depth--;
+            }
+            flush_now = batch_depth==0;
+        }
+        if(flush_now) {
+            flush();
+        }
+    }
+    public void flush() {
+        synchronized (send_lock) {
+            if(batch_deadline!=null) {
+                batch_deadline.cancel();
+                batch_deadline = null;
+            }
+            if(draining || send_queue.isEmpty()) {
+                // Whoever is draining will pick up what's queued
+                return;
+            }
+            draining = true;
+        }
+        drain();
+    }
+    public int getFramesSent() {
+        synchronized (send_lock) {
+            return frames_sent;
+        }
+    }
+    public int getRecordsSent() {
+        synchronized (send_lock) {
+            return records_sent;
+        }
+    }
+    // How many writes were dropped because a newer value for the same node replaced them before they went out
+    public int getWritesCoalesced() {
+        synchronized (send_lock) {
+            return writes_coalesced;
+        }
+    }
+
+    /**
+     * Sends queued records until the queue is empty.  The radio write happens outside send_lock
+     * so other threads can keep queueing (and coalescing) while we wait on it.
+     */
+    private void drain() {
+        while(true) {
+            byte[] buf;
+            synchronized (send_lock) {
+                int len = 0;
+                while(!send_queue.isEmpty() && len + send_queue.get(0).length <= MAX_PAYLOAD) {
+                    byte[] record = send_queue.remove(0);
+                    System.arraycopy(record, 0, frame_buf, len, record.length);
+                    len += record.length;
+                    records_sent++;
+                }
+                if(len==0) {
+                    draining = false;
+                    return;
+                }
+                buf = new byte[len + 1];
+                buf[0] = (byte) send_seq_n;
+                send_seq_n++;
+                send_seq_n &= 0xFF;
+                System.arraycopy(frame_buf, 0, buf, 1, len);
+                frames_sent++;
+            }
+            transport.send(serin_uuid, buf);
+        }
+    }
+
     private void sendBytes(byte[] payload) {
-        if (payload.length > 19) {
+        if (payload.length > MAX_PAYLOAD) {
             Log.e(TAG, "Payload too long!");
             new Exception().printStackTrace();
             return;
         }
-        byte[] buf = new byte[payload.length + 1];
-        buf[0] = (byte) send_seq_n;
-        send_seq_n++;
-        send_seq_n &= 0xFF;
-        System.arraycopy(payload, 0, buf, 1, payload.length);
-        pwrap.send(serin_uuid, buf);
+        synchronized (send_lock) {
+            if((payload[0] & 0x80)!=0) {
+                // Last writer wins.  If a write to the same node hasn't gone out yet, the newer
+                // value takes its place in the queue, so it still goes out ahead of any write that
+                // was queued after it (a range is only meaningful under the mapping before it).
+                // The replaced write's Deferred still completes when the node echoes the newer value.
+                for(int i = 0; i < send_queue.size(); i++) {
+                    if(send_queue.get(i)[0]==payload[0]) {
+                        send_queue.set(i, payload);
+                        writes_coalesced++;
+                        payload = null;
+                        break;
+                    }
+                }
+            }
+            if(payload!=null) {
+                send_queue.add(payload);
+            }
+            if(batch_depth>0) {
+                if(batch_deadline==null) {
+                    batch_deadline = Util.schedule(batch_deadline_cb, BATCH_DEADLINE_MS);
+                }
+                return;
+            }
+            if(draining) {
+                // Goes out behind whatever is being sent now
+                return;
+            }
+            draining = true;
+        }
+        drain();
     }
 
     //////////////////////
@@ -515,31 +1381,72 @@ public class ConfigTree {
         assignShortCodes();
         code_list = getShortCodeMap();
 
-        ConfigNode tree_bin = getNode("ADMIN:TREE");
-        tree_bin.addNotifyHandler(new NotifyHandler() {
-            @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                try {
-                    // This will replace all the internal members of the tree!
-                    unpack((byte[]) payload);
-                    // After unpacking, we must ensure this notify handler is re-attached
-                    ConfigNode tree_bin = getNode("ADMIN:TREE");
-                    tree_bin.addNotifyHandler(this);
-                    code_list = getShortCodeMap();
-                    enumerate();
-                    CRC32 crc = new CRC32();
-                    crc.update((byte[]) payload);
-                    final int crcvalue = (int)crc.getValue();
-                    Log.d(TAG, "CALC CRC: " + Integer.toHexString(crcvalue));
-                    getNode("ADMIN:CRC32").value = crcvalue;
-                    Util.setPreference(crcToPrefKey(crcvalue),(byte[])payload);
-                } catch (DataFormatException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        getNode("ADMIN:TREE").addNotifyHandler(tree_bin_handler);
+    }
+
+    private final NotifyHandler tree_bin_handler = new NotifyHandler() {
+        @Override
+        public void onReceived(double timestamp_utc, Object payload) {
+            int crcvalue = loadTree((byte[]) payload);
+            if(crcvalue==0) {
+                return;
+            }
+            enumerate();
+            if(Util.getRootContext()==null) {
+                // Running without an app around us (eg. replaying a trace), nowhere to stash it
+                return;
             }
-        });
+            Util.setPreference(crcToPrefKey(crcvalue),(byte[])payload);
+            TreeCache.store(root, crcvalue);
+        }
+    };
+
+    // The compressed tree we last unpacked, kept so traces can carry it
+    private byte[] tree_blob = null;
+
+    /**
+     * Replace the whole tree with the one described by a compressed ADMIN:TREE blob.
+     * @return the CRC32 of the blob, or 0 if it couldn't be unpacked
+     */
+    int loadTree(byte[] compressed) {
+        try {
+            // This will replace all the internal members of the tree!
+            unpack(compressed);
+        } catch (DataFormatException e) {
+            e.printStackTrace();
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        onTreeReplaced();
+        tree_blob = compressed;
+        CRC32 crc = new CRC32();
+        crc.update(compressed);
+        final int crcvalue = (int)crc.getValue();
+        Log.d(TAG, "CALC CRC: " + Integer.toHexString(crcvalue));
+        getNode("ADMIN:CRC32").setValue(crcvalue);
+        return crcvalue;
+    }
+    /**
+     * @return the compressed form of the current tree, or null if we don't have it
+     */
+    byte[] getTreeBlob() {
+        if(tree_blob!=null) {
+            return tree_blob;
+        }
+        ConfigNode crc_node = getNode("ADMIN:CRC32");
+        if(crc_node==null || Util.getRootContext()==null) {
+            return null;
+        }
+        // Loaded from the snapshot cache, the compressed tree is still in the preferences
+        return Util.getPreferenceByteArray(crcToPrefKey(crc_node.getIntValue()));
+    }
+
+    private void onTreeReplaced() {
+        // After replacing the tree, we must ensure the ADMIN:TREE notify handler is re-attached
+        getNode("ADMIN:TREE").addNotifyHandler(tree_bin_handler);
+        code_list = getShortCodeMap();
     }
 
     private void enumerate(ConfigNode n, String indent) {
@@ -563,30 +1470,92 @@ public class ConfigTree {
         n.addNotifyHandler(h);
         return 0;
     }
-    private ConfigNode unpack(ByteBuffer b) {
-        int ntype = b.get();
-        int nlen  = b.get();
-        byte[] namebytes = new byte[nlen];
-        b.get(namebytes);
-        String name = new String(namebytes);
-        int n_children = b.get();
-        List<ConfigNode> clist = new ArrayList<>();
-        for(int i = 0; i < n_children; i++) {
-            clist.add(unpack(b));
+    /**
+     * Builds nodes from the plain (inflated) tree description as bytes become available.
+     * Each node is serialized in preorder as {ntype, name_len, name, n_children}.
+     * Shortcodes are assigned as nodes are created, which matches assignShortCodes.
+     */
+    private class TreeBuilder {
+        private final CircularByteBuffer pending = new CircularByteBuffer();
+        // Nodes still waiting on children, and how many children each is still waiting on
+        private final List<ConfigNode> open_nodes = new ArrayList<>();
+        private final List<Integer> open_counts = new ArrayList<>();
+        private byte[] namebytes = new byte[0xFF];
+        private int next_code = 0;
+        ConfigNode root = null;
+
+        boolean isDone() {
+            return root!=null && open_nodes.isEmpty();
+        }
+        void feed(byte[] bytes, int len) {
+            pending.put(bytes, 0, len);
+            while(!isDone()) {
+                pending.mark();
+                try {
+                    int ntype = pending.get();
+                    int nlen  = pending.get()&0xFF;
+                    pending.get(namebytes, 0, nlen);
+                    int n_children = pending.get()&0xFF;
+                    addNode(new ConfigNode(ConfigTree.this, ntype, new String(namebytes, 0, nlen), null), n_children);
+                } catch(BufferUnderflowException e) {
+                    // Record isn't all here yet, wait for more
+                    pending.reset();
+                    return;
+                }
+            }
+        }
+        private void addNode(ConfigNode n, int n_children) {
+            if(n.needsShortCode()) {
+                n.code = next_code++;
+            }
+            if(root==null) {
+                root = n;
+            } else {
+                int top = open_nodes.size()-1;
+                n.parent = open_nodes.get(top);
+                n.parent.children.add(n);
+                int remaining = open_counts.get(top)-1;
+                if(remaining==0) {
+                    open_nodes.remove(top);
+                    open_counts.remove(top);
+                } else {
+                    open_counts.set(top, remaining);
+                }
+            }
+            if(n_children>0) {
+                open_nodes.add(n);
+                open_counts.add(n_children);
+            }
         }
-        return new ConfigNode(this,ntype,name,clist);
     }
+
+    private final byte[] inflate_chunk = new byte[512];
+
     public void unpack(byte[] compressed) throws DataFormatException, IOException {
+        TreeBuilder builder = new TreeBuilder();
+        int plain_len = 0;
+        // Ended as soon as we're done with it, its zlib state lives outside the Java heap and
+        // would otherwise stay around until the tree is finalized
         Inflater inflater = new Inflater();
-        inflater.setInput(compressed);
-        byte[] plain = new byte[2000]; // FIXME: How do I know how much to allocate?
-        int plain_len = inflater.inflate(plain);
-        plain = Arrays.copyOf(plain,plain_len);
-        inflater.end();
-        ByteBuffer b = wrap(plain);
-        Log.d(TAG,b.toString());
-        root = unpack(b);
-        assignShortCodes();
+        try {
+            inflater.setInput(compressed);
+            while(!inflater.finished()) {
+                int n = inflater.inflate(inflate_chunk);
+                if(n==0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated tree");
+                }
+                plain_len += n;
+                builder.feed(inflate_chunk, n);
+            }
+        } finally {
+            inflater.end();
+        }
+        Log.d(TAG,"Inflated tree: " + plain_len + " bytes");
+        if(!builder.isDone()) {
+            throw new DataFormatException("Incomplete tree");
+        }
+        root = builder.root;
+        buildPathIndex();
     }
 
     public void walk(ConfigNode n, NodeProcessor p) {
@@ -618,18 +1587,40 @@ public class ConfigTree {
             }
         };
         walk(p);
+        buildPathIndex();
     }
-    public ConfigNode getNode(String name) {
-        String[] tokens = name.split(":");
-        ConfigNode n = root;
-        for(String t:tokens) {
-            n = n.getChild(t);
+    private void buildPathIndex(ConfigNode n, String prefix, Map<String,ConfigNode> index) {
+        for(ConfigNode c:n.children) {
+            String path = prefix.length()==0 ? c.name : prefix + ":" + c.name;
+            index.put(path, c);
+            buildPathIndex(c, path, index);
+        }
+    }
+    private void buildPathIndex() {
+        Map<String,ConfigNode> index = new HashMap<>();
+        buildPathIndex(root, "", index);
+        for(String[] row : DEPENDENTS) {
+            ConfigNode n = index.get(row[0]);
             if(n==null) {
-                // Not found!
-                return null;
+                continue;
+            }
+            List<ConfigNode> deps = new ArrayList<>();
+            for(int i = 1; i < row.length; i++) {
+                ConfigNode d = index.get(row[i]);
+                if(d!=null) {
+                    deps.add(d);
+                }
             }
+            n.dependents = deps.toArray(new ConfigNode[deps.size()]);
         }
-        return n;
+        path_index = index;
+        generation++;
+    }
+    public NodeHandle getHandle(String path) {
+        return new NodeHandle(this, path);
+    }
+    public ConfigNode getNode(String name) {
+        return path_index.get(name);
     }
     public Object getValueAt(String name) {
         ConfigNode n = getNode(name);
@@ -639,13 +1630,11 @@ public class ConfigTree {
         return n.getValue();
     }
     public ConfigNode getChosenNode(String name) {
-        ConfigNode n = getNode(name);
+        return getChosenNode(getNode(name));
+    }
+    public ConfigNode getChosenNode(ConfigNode n) {
         assert n != null;
-        if(n.value ==null) {
-            // FIXME: Assume always initialized to zero!
-            n.value = 0;
-        }
-        ConfigNode rval = n.children.get((Integer) n.value);
+        ConfigNode rval = n.children.get(n.getIntValue());
         // Follow link
         if(rval.ntype==NTYPE.LINK) {
             return getNode((String) rval.getValue());
@@ -656,6 +1645,9 @@ public class ConfigTree {
     public String getChosenName(String name) {
         return getChosenNode(name).name;
     }
+    public String getChosenName(NodeHandle h) {
+        return getChosenNode(h.get()).name;
+    }
     public Map<Integer,ConfigNode> getShortCodeMap() {
         final HashMap<Integer,ConfigNode> rval = new HashMap<Integer, ConfigNode>();
         NodeProcessor p = new NodeProcessor() {
@@ -671,6 +1663,13 @@ public class ConfigTree {
     }
 
     public void command(String cmd) {
+        commandAsync(cmd).await();
+    }
+    /**
+     * Like command, but returns as soon as the request is sent.
+     * The returned Deferred completes when the meter answers.
+     */
+    public Deferred<Object> commandAsync(String cmd) {
         Log.d(TAG,"CMD: "+cmd);
         // cmd might contain a payload, in which case split it out
         String[] tokens = cmd.split(" ", 2);
@@ -685,24 +1684,158 @@ public class ConfigTree {
         ConfigTree.ConfigNode node = getNode(node_str);
         if(node==null) {
             Log.e(TAG, "Node not found at " + node_str);
-            return;
+            return Deferred.failed();
         }
         if (payload_str != null) {
-            node.sendValue(node.parseValueString(payload_str),true);
+            return node.sendValueAsync(node.parseValueString(payload_str));
         } else {
-            node.reqValue();
+            return node.reqValueAsync();
+        }
+    }
+
+    //////////////////////
+    // Pipelined refresh
+    //////////////////////
+
+    // How many read requests refreshAll keeps outstanding at once
+    public static final int REFRESH_WINDOW = 4;
+    private static class PendingRefresh {
+        final Semaphore slots;
+        // Shortcodes we have requested but not heard back about, oldest first, with when they were sent
+        final Map<Integer,Long> outstanding = new LinkedHashMap<>();
+        PendingRefresh(int window) {
+            slots = new Semaphore(window);
+        }
+    }
+    private volatile PendingRefresh pending_refresh = null;
+    // One refresh at a time, responses are only routed to pending_refresh
+    private final Object refresh_lock = new Object();
+
+    // Round trip of every request/response pair with the meter, drives the default timeouts
+    final LatencyTracker latency = new LatencyTracker("tree", DEFAULT_TIMEOUT_MS, 250, 3*DEFAULT_TIMEOUT_MS);
+    public LatencyTracker getLatency() {
+        return latency;
+    }
+
+    private void onValueReceived(ConfigNode n) {
+        PendingRefresh r = pending_refresh;
+        if(r==null) {
+            return;
+        }
+        Long sent_ns;
+        synchronized (r.outstanding) {
+            sent_ns = r.outstanding.remove(n.code);
+        }
+        if(sent_ns!=null) {
+            latency.recordSince(sent_ns);
+            r.slots.release();
+        }
+    }
+    private boolean acquireRefreshSlot(PendingRefresh r, int timeout_ms) {
+        try {
+            if(r.slots.tryAcquire(timeout_ms, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        // Nobody answered in time.  Give up on the oldest request and reuse its slot.
+        synchronized (r.outstanding) {
+            Iterator<Integer> i = r.outstanding.keySet().iterator();
+            if(i.hasNext()) {
+                int code = i.next();
+                i.remove();
+                latency.recordTimeout();
+                Log.e(TAG, "Timed out refreshing " + code_list.get(code));
+                return false;
+            }
         }
+        return true;
     }
 
-    public void refreshAll() {
+    /**
+     * Requests the value of every node in nodes, keeping up to window requests in flight.
+     * Responses are matched to requests by shortcode as they come back through interpretAggregate.
+     * Blocks until every node has answered or timed out.  A refresh started while another is
+     * running waits for it to finish first.
+     * @return the number of nodes that timed out
+     */
+    public int refresh(List<ConfigNode> nodes, int window, int timeout_ms) {
+        synchronized (refresh_lock) {
+            return refreshLocked(nodes, window, timeout_ms);
+        }
+    }
+    private int refreshLocked(List<ConfigNode> nodes, int window, int timeout_ms) {
+        if(!transport.isConnected()) {
+            Log.e(TAG,"Trying to interact with disconnected device!");
+            return -1;
+        }
+        PendingRefresh r = new PendingRefresh(window);
+        pending_refresh = r;
+        int n_timeouts = 0;
+        for(ConfigNode n:nodes) {
+            if(!acquireRefreshSlot(r, timeout_ms)) {
+                n_timeouts++;
+            }
+            synchronized (r.outstanding) {
+                r.outstanding.put(n.code, System.nanoTime());
+            }
+            sendBytes(new byte[]{(byte)n.code});
+        }
+        // Drain whatever is still in flight
+        while(true) {
+            synchronized (r.outstanding) {
+                if(r.outstanding.isEmpty()) {
+                    break;
+                }
+            }
+            if(!acquireRefreshSlot(r, timeout_ms)) {
+                n_timeouts++;
+            }
+        }
+        pending_refresh = null;
+        if(n_timeouts>0) {
+            Log.e(TAG, "refresh: " + n_timeouts + " nodes timed out");
+        }
+        return n_timeouts;
+    }
+    /**
+     * @param max_age_ms Nodes heard from more recently than this are left alone.  0 selects everything.
+     * @return every readable value node we haven't heard from within max_age_ms
+     */
+    public List<ConfigNode> getStaleNodes(long max_age_ms) {
+        List<ConfigNode> rval = new ArrayList<>();
         // Shortcodes are guaranteed to be consecutive
         int n_codes = code_list.keySet().size();
         // Skip the first 3 codes (they are for CRC, tree and diagnostic
         for(int i = 3; i < n_codes; i++) {
             ConfigNode n = code_list.get(i);
-            if(n.ntype != NTYPE.VAL_BIN) {
-                n.reqValue();
+            if(n.ntype == NTYPE.VAL_BIN) {
+                continue;
+            }
+            if(max_age_ms==0 || n.isStale(max_age_ms)) {
+                rval.add(n);
             }
         }
+        return rval;
+    }
+    public int refreshAll(int window, int timeout_ms) {
+        return refresh(getStaleNodes(0), window, timeout_ms);
+    }
+    public int refreshAll() {
+        return refreshAll(REFRESH_WINDOW, latency.getTimeoutMs());
+    }
+    /**
+     * Delta refresh: only re-read values older than max_age_ms, or invalidated since we last heard
+     * them (eg. ranges after a MAPPING change).  Values the meter streams to us stay fresh on
+     * their own and are skipped.
+     * @return the number of nodes that timed out
+     */
+    public int refreshStale(long max_age_ms) {
+        return refresh(getStaleNodes(max_age_ms), REFRESH_WINDOW, latency.getTimeoutMs());
+    }
+    // Only re-read values that have been invalidated
+    public int refreshInvalidated() {
+        return refreshStale(Long.MAX_VALUE);
     }
-}
\ No newline at end of file
+}
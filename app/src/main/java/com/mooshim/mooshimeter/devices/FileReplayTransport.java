@@ -0,0 +1,158 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.util.Log;
+
+import com.mooshim.mooshimeter.interfaces.NotifyHandler;
+import com.mooshim.mooshimeter.interfaces.Transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * A Transport whose notifications come from a trace written by TraceRecorder.  Playback starts
+ * when notifications are enabled on serout and runs on its own thread.  Writes are accepted and
+ * counted but go nowhere, since a recording can't answer them.  Notifications are handed over
+ * in the same batches TraceReplayer plays them back in, like a drain of a live peripheral.
+ *
+ * A ConfigTree can't run the attach() handshake against a recording, so load the trace's tree
+ * first and use attachPassive():
+ *     FileReplayTransport t = new FileReplayTransport(f, serin, serout, TraceReplayer.MAX_SPEED);
+ *     t.prepare(tree);
+ *     tree.attachPassive(t, serin, serout);
+ *     t.awaitFinished();
+ */
+public class FileReplayTransport implements Transport {
+    private static final String TAG = "FileReplayTransport";
+
+    private final TraceReplayer replayer;
+    private final UUID serin;
+    private final UUID serout;
+    private final double speed;
+
+    private volatile NotifyHandler serout_cb = null;
+    private Thread player = null;
+    private volatile TraceReplayer.Stats stats = null;
+    private volatile boolean connected = true;
+    private int writes_discarded = 0;
+
+    public FileReplayTransport(File f, UUID serin_arg, UUID serout_arg, double speed_arg) throws IOException {
+        replayer = new TraceReplayer(f);
+        serin = serin_arg;
+        serout = serout_arg;
+        speed = speed_arg;
+    }
+
+    /**
+     * Load the tree the trace was recorded against in to tree.
+     * @return 0 on success
+     */
+    public int prepare(ConfigTree tree) {
+        return replayer.prepare(tree);
+    }
+
+    /**
+     * Block until playback has finished
+     * @return playback stats, or null if playback never started
+     */
+    public TraceReplayer.Stats awaitFinished() {
+        Thread t;
+        synchronized (this) {
+            t = player;
+        }
+        if(t==null) {
+            return null;
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        return stats;
+    }
+
+    public synchronized int getWritesDiscarded() {
+        return writes_discarded;
+    }
+
+    public synchronized void close() {
+        connected = false;
+        serout_cb = null;
+        if(player!=null) {
+            player.interrupt();
+        }
+    }
+
+    private synchronized void startPlayback() {
+        if(player!=null) {
+            return;
+        }
+        player = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stats = replayer.replay(new NotifyHandler() {
+                    // Whoever was told a batch started is the one told it ended
+                    private NotifyHandler batch_cb = null;
+                    @Override
+                    public void onReceived(double timestamp_utc, Object payload) {
+                        NotifyHandler h = serout_cb;
+                        if(h!=null) {
+                            h.onReceived(timestamp_utc, payload);
+                        }
+                    }
+                    @Override
+                    public void onBatchStart() {
+                        batch_cb = serout_cb;
+                        if(batch_cb!=null) {
+                            batch_cb.onBatchStart();
+                        }
+                    }
+                    @Override
+                    public void onBatchEnd() {
+                        NotifyHandler h = batch_cb;
+                        batch_cb = null;
+                        if(h!=null) {
+                            h.onBatchEnd();
+                        }
+                    }
+                }, speed);
+                Log.d(TAG, "Replay finished: " + stats);
+            }
+        }, "trace_replay");
+        player.setDaemon(true);
+        player.start();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+    @Override
+    public synchronized int send(UUID uuid, byte[] value) {
+        if(!connected || !uuid.equals(serin)) {
+            return -1;
+        }
+        writes_discarded++;
+        return 0;
+    }
+    @Override
+    public byte[] req(UUID uuid) {
+        Log.e(TAG, "A recording has no readable characteristics");
+        return null;
+    }
+    @Override
+    public boolean isNotificationEnabled(UUID uuid) {
+        return uuid.equals(serout) && serout_cb!=null;
+    }
+    @Override
+    public int enableNotify(UUID uuid, boolean enable, NotifyHandler on_notify) {
+        if(!connected || !uuid.equals(serout)) {
+            return -1;
+        }
+        serout_cb = enable ? on_notify : null;
+        if(serout_cb!=null) {
+            startPlayback();
+        }
+        return 0;
+    }
+}
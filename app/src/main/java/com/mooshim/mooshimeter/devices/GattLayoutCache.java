@@ -0,0 +1,101 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.SharedPreferences;
+
+import com.mooshim.mooshimeter.common.Util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Remembers the service and characteristic layout we discovered on each meter, keyed by address
+ * and the firmware build time from its advertisement.  While the build time is unchanged the
+ * layout can't have changed, so PeripheralWrapper leaves Android's own GATT cache alone and lets
+ * discovery come back from it instead of going over the air, then checks the result against
+ * what's stored here.
+ *
+ * Each entry is one preference string: build time, then one "service/characteristic/properties"
+ * line per characteristic, sorted so equal layouts compare equal.
+ */
+class GattLayoutCache {
+    private static final String PREFS = "mooshimeter-gatt-layout";
+
+    private GattLayoutCache() {}
+
+    private static SharedPreferences getPrefs() {
+        if(Util.getRootContext()==null) {
+            return null;
+        }
+        return Util.getSharedPreferences(PREFS);
+    }
+
+    static String describe(List<BluetoothGattService> services) {
+        List<String> lines = new ArrayList<>();
+        for(BluetoothGattService s : services) {
+            for(BluetoothGattCharacteristic c : s.getCharacteristics()) {
+                lines.add(s.getUuid() + "/" + c.getUuid() + "/" + c.getProperties());
+            }
+        }
+        Collections.sort(lines);
+        StringBuilder b = new StringBuilder();
+        for(String line : lines) {
+            b.append(line).append('\n');
+        }
+        return b.toString();
+    }
+
+    // The layout we stored for address, or null if we don't have one for this build
+    private static String get(String address, int build_time) {
+        SharedPreferences p = getPrefs();
+        if(p==null || build_time==0) {
+            return null;
+        }
+        String entry = p.getString(address, null);
+        if(entry==null) {
+            return null;
+        }
+        int split = entry.indexOf('\n');
+        if(split<0 || !entry.substring(0, split).equals(Integer.toString(build_time))) {
+            return null;
+        }
+        return entry.substring(split+1);
+    }
+
+    /**
+     * @return true if we've seen this meter on this build before, so Android's GATT cache can be trusted
+     */
+    static boolean has(String address, int build_time) {
+        return get(address, build_time)!=null;
+    }
+
+    /**
+     * @return true if services match what we stored for this meter and build
+     */
+    static boolean matches(String address, int build_time, List<BluetoothGattService> services) {
+        String layout = get(address, build_time);
+        return layout!=null && layout.equals(describe(services));
+    }
+
+    static void store(String address, int build_time, List<BluetoothGattService> services) {
+        SharedPreferences p = getPrefs();
+        if(p==null || build_time==0) {
+            return;
+        }
+        SharedPreferences.Editor e = p.edit();
+        e.putString(address, build_time + "\n" + describe(services));
+        e.commit();
+    }
+
+    static void forget(String address) {
+        SharedPreferences p = getPrefs();
+        if(p==null) {
+            return;
+        }
+        SharedPreferences.Editor e = p.edit();
+        e.remove(address);
+        e.commit();
+    }
+}
@@ -3,6 +3,7 @@ package com.mooshim.mooshimeter.devices;
 import android.util.Log;
 
 import com.mooshim.mooshimeter.interfaces.NotifyHandler;
+import com.mooshim.mooshimeter.interfaces.Transport;
 
 import java.nio.BufferUnderflowException;
 import java.util.UUID;
@@ -18,15 +19,15 @@ public abstract class LegacyMeterStructure {
      * you must wait for cb to be called.
      */
     private static String TAG = "LegacyStruct";
-    private PeripheralWrapper mPwrap;
+    private Transport mTransport;
     //public LegacyMeterStructure() {
     //    Log.e(TAG,"CAN'T INITIALIZE WITHOUT PWRAP");
     //}
-    public LegacyMeterStructure(PeripheralWrapper pwrap) {
-        mPwrap=pwrap;
+    public LegacyMeterStructure(Transport transport) {
+        mTransport=transport;
     }
     public void update() {
-        unpack(mPwrap.req(getUUID()));
+        unpack(mTransport.req(getUUID()));
     }
     public void unpack(byte[] in) {
         if(in==null) {
@@ -49,7 +50,7 @@ public abstract class LegacyMeterStructure {
      * you must wait for cb to be called.
      */
     public int send() {
-        return mPwrap.send(getUUID(), pack());
+        return mTransport.send(getUUID(), pack());
     }
 
     /**
@@ -57,7 +58,7 @@ public abstract class LegacyMeterStructure {
      * @return boolean Is it enabled or aint it
      */
     public boolean isNotificationEnabled() {
-        return mPwrap.isNotificationEnabled(getUUID());
+        return mTransport.isNotificationEnabled(getUUID());
     }
 
     /**
@@ -66,7 +67,7 @@ public abstract class LegacyMeterStructure {
      * @param on_notify     When a notify event is received, this is called.
      */
     public int enableNotify(boolean enable, final NotifyHandler on_notify) {
-        return mPwrap.enableNotify(getUUID(), enable, new NotifyHandler() {
+        return mTransport.enableNotify(getUUID(), enable, new NotifyHandler() {
             @Override
             public void onReceived(double timestamp_utc, Object payload) {
                 byte[] bytes = (byte[])payload;
@@ -28,6 +28,7 @@ import com.mooshim.mooshimeter.common.Chooser;
 import com.mooshim.mooshimeter.common.MeterReading;
 import com.mooshim.mooshimeter.interfaces.NotifyHandler;
 import com.mooshim.mooshimeter.common.ThermocoupleHelper;
+import com.mooshim.mooshimeter.common.TimerWheel;
 import com.mooshim.mooshimeter.common.Util;
 
 import java.nio.ByteBuffer;
@@ -736,15 +737,16 @@ public class LegacyMooshimeterDevice extends MooshimeterDeviceBase {
         h.addRange("350K",350,temperature_converter,PGA_GAIN.PGA_GAIN_1,GPIO_SETTING.IGNORE,ISRC_SETTING.IGNORE);
     }
 
+    private TimerWheel.Timeout bat_timer = null;
     private Runnable bat_poller = new Runnable() {
         @Override
         public void run() {
             if(!isConnected()) {
+                bat_timer.cancel();
                 return;
             }
             meter_bat.update();
             delegate.onBatteryVoltageReceived(meter_bat.bat_v);
-            Util.postDelayed(bat_poller, 10000);
         }
     };
 
@@ -863,11 +865,15 @@ public class LegacyMooshimeterDevice extends MooshimeterDeviceBase {
         };
         l.add(mid);
 
-        Util.cancelDelayedCB(log_status_checker);
-        Util.postDelayed(log_status_checker, 5000);
+        if(log_status_timer!=null) {
+            log_status_timer.cancel();
+        }
+        log_status_timer = Util.schedulePeriodic(log_status_checker, 5000, 5000);
 
-        Util.cancelDelayedCB(bat_poller);
-        Util.postDelayed(bat_poller,1000);
+        if(bat_timer!=null) {
+            bat_timer.cancel();
+        }
+        bat_timer = Util.schedulePeriodic(bat_poller, 1000, 10000);
 
         determineInputDescriptorIndex(Channel.CH1);
         determineInputDescriptorIndex(Channel.CH2);
@@ -965,15 +971,16 @@ public class LegacyMooshimeterDevice extends MooshimeterDeviceBase {
         }
     };
 
+    private TimerWheel.Timeout log_status_timer = null;
     private Runnable log_status_checker = new Runnable() {
         @Override
         public void run() {
             if(!isConnected()) {
+                log_status_timer.cancel();
                 return;
             }
             meter_log_settings.update();
             delegate.onLoggingStatusChanged(getLoggingOn(), getLoggingStatus(), getLoggingStatusMessage());
-            Util.postDelayed(log_status_checker, 5000);
         }
     };
 
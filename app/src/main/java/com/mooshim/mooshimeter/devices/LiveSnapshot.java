@@ -0,0 +1,117 @@
+package com.mooshim.mooshimeter.devices;
+
+import com.mooshim.mooshimeter.interfaces.MooshimeterControlInterface.Channel;
+
+/**
+ * The latest live readings (CH1:VALUE, CH2:VALUE and REAL_PWR), published together once per
+ * received frame so readers never mix samples from different frames.
+ *
+ * This is a seqlock: the single writer (the cb_thread) makes the sequence number odd while it
+ * updates the published values and even again when it's done.  Readers copy the values and retry
+ * if the sequence number was odd or moved underneath them.  Neither side ever blocks.
+ * All published fields are volatile so the reader's loads can't be reordered around the
+ * sequence number checks.
+ */
+public class LiveSnapshot {
+    /**
+     * A coherent copy of the live readings.  Reusable, pass it back in to read(View) to avoid
+     * allocating.
+     */
+    public static class View {
+        public double timestamp_utc = 0;
+        public float ch1 = 0;
+        public float ch2 = 0;
+        public float real_pwr = 0;
+        // How many frames had been published when this view was taken
+        public int frame = 0;
+
+        public float get(Channel c) {
+            switch(c) {
+                case CH1:
+                    return ch1;
+                case CH2:
+                    return ch2;
+                default:
+                    return real_pwr;
+            }
+        }
+    }
+
+    private volatile int seq = 0;
+    private volatile double timestamp_utc = 0;
+    private volatile float ch1 = 0;
+    private volatile float ch2 = 0;
+    private volatile float real_pwr = 0;
+
+    // Staged values for the frame currently being decoded.  Only touched by the writer thread.
+    private double w_timestamp_utc = 0;
+    private float w_ch1 = 0;
+    private float w_ch2 = 0;
+    private float w_real_pwr = 0;
+    private boolean w_dirty = false;
+
+    //////////////////
+    // Writer side (cb_thread only)
+    //////////////////
+
+    void stage(Channel c, double timestamp_utc, float val) {
+        switch(c) {
+            case CH1:
+                w_ch1 = val;
+                break;
+            case CH2:
+                w_ch2 = val;
+                break;
+            case MATH:
+                w_real_pwr = val;
+                break;
+        }
+        w_timestamp_utc = timestamp_utc;
+        w_dirty = true;
+    }
+
+    /**
+     * Make everything staged since the last publish visible to readers at once.
+     * @return true if anything was published
+     */
+    boolean publish() {
+        if(!w_dirty) {
+            return false;
+        }
+        w_dirty = false;
+        int s = seq;
+        seq = s+1;
+        timestamp_utc = w_timestamp_utc;
+        ch1 = w_ch1;
+        ch2 = w_ch2;
+        real_pwr = w_real_pwr;
+        seq = s+2;
+        return true;
+    }
+
+    //////////////////
+    // Reader side (any thread)
+    //////////////////
+
+    public View read(View into) {
+        while(true) {
+            int s = seq;
+            if((s&1)!=0) {
+                // Writer is mid update
+                Thread.yield();
+                continue;
+            }
+            into.timestamp_utc = timestamp_utc;
+            into.ch1 = ch1;
+            into.ch2 = ch2;
+            into.real_pwr = real_pwr;
+            if(seq==s) {
+                into.frame = s>>1;
+                return into;
+            }
+        }
+    }
+    public View read() {
+        return read(new View());
+    }
+}
@@ -0,0 +1,119 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.util.Log;
+
+import com.mooshim.mooshimeter.common.Util;
+import com.mooshim.mooshimeter.interfaces.NotifyHandler;
+import com.mooshim.mooshimeter.interfaces.Transport;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-process Transport.  Writes go straight to an Endpoint standing in for the meter, and the
+ * endpoint pushes notifications back with deliver().  Nothing is copied or queued, so this is the
+ * cheapest way to drive the protocol stack when benchmarking it.
+ */
+public class LoopbackTransport implements Transport {
+    private static final String TAG = "LoopbackTransport";
+
+    /**
+     * The far side of the loopback.  Called on the thread that wrote or read.
+     */
+    public static abstract class Endpoint {
+        public abstract int onWrite(LoopbackTransport t, UUID uuid, byte[] value);
+        public byte[] onRead(LoopbackTransport t, UUID uuid) {
+            return null;
+        }
+    }
+
+    private final Endpoint endpoint;
+    private final Map<UUID,NotifyHandler> notify_cb = new ConcurrentHashMap<>();
+    private volatile boolean connected = true;
+
+    public LoopbackTransport(Endpoint endpoint_arg) {
+        endpoint = endpoint_arg;
+    }
+
+    /**
+     * Loop serin writes in to meter and meter's serout back out as notifications on serout
+     */
+    public LoopbackTransport(final SimulatedMeter meter, final UUID serin, final UUID serout) {
+        this(new Endpoint() {
+            @Override
+            public int onWrite(LoopbackTransport t, UUID uuid, byte[] value) {
+                if(!uuid.equals(serin)) {
+                    return -1;
+                }
+                meter.receive(value);
+                return 0;
+            }
+        });
+        meter.setSeroutHandler(new NotifyHandler() {
+            @Override
+            public void onReceived(double timestamp_utc, Object payload) {
+                deliver(serout, timestamp_utc, (byte[])payload);
+            }
+        });
+    }
+
+    /**
+     * Deliver a notification on uuid, if notifications are enabled for it.
+     * @return 0 if it was delivered
+     */
+    public int deliver(UUID uuid, double timestamp_utc, byte[] value) {
+        NotifyHandler h = notify_cb.get(uuid);
+        if(!connected || h==null) {
+            return -1;
+        }
+        h.onReceived(timestamp_utc, value);
+        return 0;
+    }
+    public int deliver(UUID uuid, byte[] value) {
+        return deliver(uuid, Util.getUTCTime(), value);
+    }
+
+    public void close() {
+        connected = false;
+        notify_cb.clear();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+    @Override
+    public int send(UUID uuid, byte[] value) {
+        if(!connected) {
+            Log.e(TAG,"Trying to send on a closed loopback");
+            return -1;
+        }
+        return endpoint.onWrite(this, uuid, value);
+    }
+    @Override
+    public byte[] req(UUID uuid) {
+        if(!connected) {
+            Log.e(TAG,"Trying to read from a closed loopback");
+            return null;
+        }
+        return endpoint.onRead(this, uuid);
+    }
+    @Override
+    public boolean isNotificationEnabled(UUID uuid) {
+        return notify_cb.containsKey(uuid);
+    }
+    @Override
+    public int enableNotify(UUID uuid, boolean enable, NotifyHandler on_notify) {
+        if(!connected) {
+            Log.e(TAG,"Trying to set notification on a closed loopback");
+            return -1;
+        }
+        if(enable && on_notify!=null) {
+            notify_cb.put(uuid, on_notify);
+        } else {
+            notify_cb.remove(uuid);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,496 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.bluetooth.BluetoothGatt;
+import android.util.Log;
+
+import com.mooshim.mooshimeter.common.Dispatcher;
+import com.mooshim.mooshimeter.common.MeterReading;
+import com.mooshim.mooshimeter.common.TimerWheel;
+import com.mooshim.mooshimeter.common.Util;
+import com.mooshim.mooshimeter.interfaces.MooshimeterControlInterface.Channel;
+import com.mooshim.mooshimeter.interfaces.MooshimeterDelegate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs several meters at once from one phone and merges what they measure in to one stream.
+ *
+ * Each meter gets two lanes of its own: one that runs commands to it in order, and one its
+ * PeripheralWrapper delivers callbacks on instead of the shared cb_thread.  A meter that's slow
+ * to answer only holds up itself.
+ *
+ * Samples are stamped when the phone receives them, which adds a different, jittery link delay
+ * per meter.  Each meter's frames are a fixed period apart on its own clock, so we fit a clock
+ * per meter that steps one period per frame and never runs ahead of the receive time.  That
+ * tracks the earliest each frame could have arrived, which lines the meters up on the phone's
+ * clock (whichever one the transport stamps with, as in the delegate timestamps) to within their
+ * shortest link delay instead of their worst.
+ *
+ * The merge holds samples until every streaming meter has reported past them, then delivers them
+ * to the Listener in time order on one thread.  A meter that goes quiet only holds the others up
+ * for MAX_HOLD_MS.
+ *
+ * The rig takes over each meter's delegate while it runs.
+ */
+public class MeterRig {
+    private static final String TAG = "MeterRig";
+
+    public static final int CONNECT_ATTEMPTS = 3;
+    public static final int CONNECT_TIMEOUT_MS = 60000;
+    // Longest a sample waits on a slower meter before it's delivered anyway
+    public static final int MAX_HOLD_MS = 500;
+    // Longest we believe a frame can take to arrive.  Any further behind and frames went missing.
+    private static final double MAX_LINK_DELAY_S = 0.25;
+    // Per frame, the fitted clock may run this much faster than the nominal period.  Lets it keep
+    // up with a meter whose crystal is faster than the phone's.
+    private static final double SLEW = 1e-3;
+
+    /**
+     * Receives the merged stream.  Called on the rig's own thread, one call at a time, with
+     * timestamps that never go backwards except for the odd late sample (see getLateCount).
+     */
+    public static abstract class Listener {
+        /**
+         * meter has been identified and is about to be initialized.  The rig doesn't know where
+         * the app keeps its devices, so this is where to register it (eg. MyActivity.putDevice).
+         * Called on the meter's own lane, possibly for several meters at once.
+         */
+        public void onMeterJoined(BLEDeviceBase meter) {}
+        public abstract void onSample(String address, double timestamp, Channel c, MeterReading val);
+        public void onBuffer(String address, double timestamp, Channel c, float dt, float[] val) {}
+        // The meter dropped and isn't coming back on its own
+        public void onMeterDisconnected(String address) {}
+    }
+
+    private static class Event {
+        final long seq;
+        final String address;
+        final double timestamp;
+        final Channel c;
+        final MeterReading reading;
+        final float dt;
+        final float[] buf;
+        final long held_since_ns = System.nanoTime();
+        Event(long seq, String address, double timestamp, Channel c, MeterReading reading, float dt, float[] buf) {
+            this.seq = seq;
+            this.address = address;
+            this.timestamp = timestamp;
+            this.c = c;
+            this.reading = reading;
+            this.dt = dt;
+            this.buf = buf;
+        }
+    }
+
+    private class Member implements MooshimeterDelegate {
+        final String address;
+        final Dispatcher lane;
+        final Dispatcher cb_lane;
+        volatile BLEDeviceBase device;
+        volatile boolean live = false;
+        // Rig time of the newest frame merged from this meter, 0 if none yet
+        volatile double newest = 0;
+
+        // Clock fit state, only touched on cb_lane
+        private double last_raw = 0;
+        private double last_t = 0;
+
+        Member(BLEDeviceBase d) {
+            address = d.getAddress();
+            device  = d;
+            lane    = new Dispatcher("rig_" + address);
+            cb_lane = new Dispatcher("rig_cb_" + address);
+        }
+
+        MooshimeterDeviceBase meter() {
+            return (MooshimeterDeviceBase)device;
+        }
+
+        // Rig time for a frame received at raw.  Samples from the same frame share a raw timestamp.
+        private double fit(double raw) {
+            if(raw==last_raw && last_t!=0) {
+                return last_t;
+            }
+            last_raw = raw;
+            double period = 0;
+            int rate = meter().getSampleRateHz();
+            if(rate > 0) {
+                period = (double)meter().getBufferDepth()/rate;
+            }
+            if(last_t==0 || period<=0) {
+                last_t = raw;
+                return last_t;
+            }
+            double t = Math.min(raw, last_t + period*(1+SLEW));
+            double behind = raw - t;
+            if(behind > MAX_LINK_DELAY_S) {
+                // Catch up over the frames we never saw
+                t += Math.floor(behind/period)*period;
+            }
+            last_t = t;
+            return last_t;
+        }
+
+        void resetFit() {
+            last_t = 0;
+        }
+
+        @Override
+        public void onDisconnect() {
+            live = false;
+            newest = 0;
+            Log.i(TAG, address + " left the rig");
+            listener.onMeterDisconnected(address);
+        }
+        @Override
+        public void onSampleReceived(double timestamp_utc, Channel c, MeterReading val) {
+            offer(this, fit(timestamp_utc), c, val, 0, null);
+        }
+        @Override
+        public void onBufferReceived(double timestamp_utc, Channel c, float dt, float[] val) {
+            offer(this, fit(timestamp_utc), c, null, dt, val);
+        }
+        @Override
+        public void onSampleRateChanged(int i, int sample_rate_hz) {
+            resetFit();
+        }
+        @Override
+        public void onBufferDepthChanged(int i, int buffer_depth) {
+            resetFit();
+        }
+        @Override
+        public void onRssiReceived(int rssi) {}
+        @Override
+        public void onBatteryVoltageReceived(float voltage) {}
+        @Override
+        public void onLoggingStatusChanged(boolean on, int new_state, String message) {}
+        @Override
+        public void onRangeChange(Channel c, MooshimeterDeviceBase.RangeDescriptor new_range) {}
+        @Override
+        public void onInputChange(Channel c, MooshimeterDeviceBase.InputDescriptor descriptor) {}
+        @Override
+        public void onOffsetChange(Channel c, MeterReading offset) {}
+    }
+
+    private final Listener listener;
+    private final Map<String,Member> members = new ConcurrentHashMap<>();
+
+    private final PriorityQueue<Event> pending = new PriorityQueue<>(64, new Comparator<Event>() {
+        @Override
+        public int compare(Event a, Event b) {
+            if(a.timestamp!=b.timestamp) {
+                return a.timestamp < b.timestamp ? -1 : 1;
+            }
+            return a.seq < b.seq ? -1 : (a.seq==b.seq ? 0 : 1);
+        }
+    });
+    // The same events in the order they arrived, so we can tell which has been held longest
+    private final ArrayDeque<Event> arrivals = new ArrayDeque<>();
+    private long next_seq = 0;
+    private double delivered_to = 0;
+    // Everything stamped up to here has waited long enough for the slow meters
+    private double forced_to = 0;
+    private int n_late = 0;
+    private TimerWheel.Timeout hold_timer = null;
+
+    private final Dispatcher out = new Dispatcher("rig_out");
+    private final AtomicBoolean drain_pending = new AtomicBoolean(false);
+
+    public MeterRig(Listener listener_arg) {
+        listener = listener_arg;
+    }
+
+    /**
+     * Connect, discover and initialize every device in parallel, each on its own lane.  Blocks
+     * until they've all finished or failed.  Devices that fail are left disconnected and out of
+     * the rig.
+     * @return how many meters joined the rig
+     */
+    public int connectAll(Collection<? extends BLEDeviceBase> devices) {
+        Util.checkNotOnMainThread();
+        final List<Member> joining = new ArrayList<>();
+        for(BLEDeviceBase d : devices) {
+            if(members.containsKey(d.getAddress())) {
+                continue;
+            }
+            joining.add(new Member(d));
+        }
+        final CountDownLatch done = new CountDownLatch(joining.size());
+        for(final Member m : joining) {
+            m.lane.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    int rval = -1;
+                    try {
+                        rval = join(m);
+                    } catch (Exception e) {
+                        Log.e(TAG, m.address + ": exception joining the rig");
+                        e.printStackTrace();
+                        m.device.mPwrap.setCallbackLane(null);
+                    }
+                    if(rval==0) {
+                        members.put(m.address, m);
+                    } else {
+                        shutdownLanes(m);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            if(!done.await(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, "Timed out waiting for meters to connect");
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        int n = 0;
+        for(Member m : joining) {
+            if(members.containsKey(m.address)) {
+                n++;
+            }
+        }
+        Log.i(TAG, n + " of " + joining.size() + " meters joined the rig");
+        return n;
+    }
+
+    // Same sequence as ScanActivity's connect, run on the member's lane
+    private int join(Member m) {
+        BLEDeviceBase d = m.device;
+        d.mPwrap.setCallbackLane(m.cb_lane);
+        int rval = BluetoothGatt.GATT_FAILURE;
+        int attempts = 0;
+        while(attempts++ < CONNECT_ATTEMPTS && rval != BluetoothGatt.GATT_SUCCESS) {
+            rval = d.connect();
+        }
+        if(rval != BluetoothGatt.GATT_SUCCESS) {
+            Log.e(TAG, m.address + ": connection failed, status " + rval);
+            d.mPwrap.setCallbackLane(null);
+            return -1;
+        }
+        rval = d.discover();
+        if(rval != BluetoothGatt.GATT_SUCCESS) {
+            Log.e(TAG, m.address + ": discovery failed, status " + rval);
+            d.disconnect();
+            d.mPwrap.setCallbackLane(null);
+            return -1;
+        }
+        BLEDeviceBase sub = d.chooseSubclass();
+        if(!(sub instanceof MooshimeterDeviceBase)) {
+            Log.e(TAG, m.address + ": not a meter we can stream from");
+            d.disconnect();
+            d.mPwrap.setCallbackLane(null);
+            return -1;
+        }
+        m.device = sub;
+        listener.onMeterJoined(sub);
+        MooshimeterDeviceBase meter = m.meter();
+        meter.addDelegate(m);
+        if(0 != meter.initialize()) {
+            Log.e(TAG, m.address + ": initialization failed");
+            meter.removeDelegate();
+            meter.disconnect();
+            meter.mPwrap.setCallbackLane(null);
+            return -1;
+        }
+        m.live = true;
+        return 0;
+    }
+
+    /**
+     * Run r on the lane for the meter at address, after anything already queued for it.
+     * @return false if that meter isn't in the rig
+     */
+    public boolean dispatch(String address, Runnable r) {
+        Member m = members.get(address);
+        if(m==null) {
+            return false;
+        }
+        m.lane.dispatch(r);
+        return true;
+    }
+
+    public void streamAll() {
+        for(final Member m : members.values()) {
+            m.lane.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    m.resetFit();
+                    m.meter().stream();
+                }
+            });
+        }
+    }
+
+    public void pauseAll() {
+        for(final Member m : members.values()) {
+            m.lane.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    m.meter().pause();
+                }
+            });
+        }
+    }
+
+    /**
+     * Disconnect every meter and release the lanes.  The rig can't be used afterwards.
+     */
+    public void disconnectAll() {
+        for(final Member m : members.values()) {
+            members.remove(m.address);
+            m.live = false;
+            m.lane.dispatch(new Runnable() {
+                @Override
+                public void run() {
+                    MooshimeterDeviceBase meter = m.meter();
+                    meter.removeDelegate();
+                    meter.disconnect();
+                    meter.mPwrap.setCallbackLane(null);
+                    shutdownLanes(m);
+                }
+            });
+        }
+        synchronized (pending) {
+            pending.clear();
+            arrivals.clear();
+            if(hold_timer!=null) {
+                hold_timer.cancel();
+                hold_timer = null;
+            }
+        }
+        out.shutdown();
+    }
+
+    private void shutdownLanes(Member m) {
+        m.lane.shutdown();
+        m.cb_lane.shutdown();
+    }
+
+    public List<MooshimeterDeviceBase> getMeters() {
+        List<MooshimeterDeviceBase> rval = new ArrayList<>();
+        for(Member m : members.values()) {
+            rval.add(m.meter());
+        }
+        return rval;
+    }
+
+    public MooshimeterDeviceBase getMeter(String address) {
+        Member m = members.get(address);
+        return m==null ? null : m.meter();
+    }
+
+    /**
+     * @return how many samples arrived after the merge had already moved past them.  They're
+     * still delivered, just out of order.
+     */
+    public int getLateCount() {
+        synchronized (pending) {
+            return n_late;
+        }
+    }
+
+    //////////////////
+    // Merge
+    //////////////////
+
+    private void offer(Member m, double timestamp, Channel c, MeterReading reading, float dt, float[] buf) {
+        synchronized (pending) {
+            Event e = new Event(next_seq++, m.address, timestamp, c, reading, dt, buf);
+            pending.add(e);
+            arrivals.add(e);
+            if(timestamp > m.newest) {
+                m.newest = timestamp;
+            }
+        }
+        kick();
+    }
+
+    private void kick() {
+        if(!drain_pending.getAndSet(true)) {
+            out.dispatch(drain);
+        }
+    }
+
+    private final Runnable hold_expired = new Runnable() {
+        @Override
+        public void run() {
+            kick();
+        }
+    };
+
+    // Everyone is past this, so nothing earlier can still turn up
+    private double watermark() {
+        double rval = Double.MAX_VALUE;
+        for(Member m : members.values()) {
+            double t = m.newest;
+            if(m.live && t!=0) {
+                rval = Math.min(rval, t);
+            }
+        }
+        return rval==Double.MAX_VALUE ? 0 : rval;
+    }
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain_pending.set(false);
+            List<Event> ready = new ArrayList<>();
+            synchronized (pending) {
+                long now_ns = System.nanoTime();
+                while(!arrivals.isEmpty() && now_ns - arrivals.peek().held_since_ns >= MAX_HOLD_MS*1000000L) {
+                    forced_to = Math.max(forced_to, arrivals.poll().timestamp);
+                }
+                // A meter joining or coming back can pull the watermark back, but never below what's
+                // already out.  Anything that lands under that is late and goes straight out.
+                double mark = Math.max(Math.max(watermark(), forced_to), delivered_to);
+                while(!pending.isEmpty()) {
+                    Event e = pending.peek();
+                    if(e.timestamp > mark) {
+                        break;
+                    }
+                    pending.poll();
+                    if(e.timestamp < delivered_to) {
+                        n_late++;
+                    } else {
+                        delivered_to = e.timestamp;
+                    }
+                    ready.add(e);
+                }
+                if(hold_timer!=null) {
+                    hold_timer.cancel();
+                    hold_timer = null;
+                }
+                if(pending.isEmpty()) {
+                    arrivals.clear();
+                } else if(!arrivals.isEmpty()) {
+                    // Come back when the longest held has waited long enough
+                    long wait_ns = arrivals.peek().held_since_ns + MAX_HOLD_MS*1000000L - now_ns;
+                    hold_timer = Util.schedule(hold_expired, Math.max((int)(wait_ns/1000000), 1));
+                }
+            }
+            for(Event e : ready) {
+                try {
+                    if(e.buf!=null) {
+                        listener.onBuffer(e.address, e.timestamp, e.c, e.dt, e.buf);
+                    } else {
+                        listener.onSample(e.address, e.timestamp, e.c, e.reading);
+                    }
+                } catch (Exception ex) {
+                    Log.e(TAG, "Exception in rig listener");
+                    ex.printStackTrace();
+                }
+            }
+        }
+    };
+}
@@ -5,9 +5,15 @@ import android.util.Log;
 import com.mooshim.mooshimeter.common.Alerter;
 import com.mooshim.mooshimeter.common.BroadcastIntentData;
 import com.mooshim.mooshimeter.common.Chooser;
+import com.mooshim.mooshimeter.common.Deferred;
+import com.mooshim.mooshimeter.common.Dispatcher;
 import com.mooshim.mooshimeter.common.MeterReading;
+import com.mooshim.mooshimeter.interfaces.BytesNotifyHandler;
+import com.mooshim.mooshimeter.interfaces.FloatNotifyHandler;
+import com.mooshim.mooshimeter.interfaces.IntNotifyHandler;
 import com.mooshim.mooshimeter.interfaces.NotifyHandler;
 import com.mooshim.mooshimeter.common.ThermocoupleHelper;
+import com.mooshim.mooshimeter.common.TimerWheel;
 import com.mooshim.mooshimeter.common.Util;
 
 import java.nio.ByteBuffer;
@@ -17,6 +23,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.util.UUID.fromString;
 
@@ -48,6 +55,50 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
 
     public ConfigTree tree = null;
 
+    // Precompiled handles for the nodes we touch on every sample, so the hot paths don't
+    // have to build and look up path strings.  They survive tree reloads.
+    private static class ChannelHandles {
+        final ConfigTree.NodeHandle value, offset, range_i, buf_bps, buf_lsb2native, mapping, analysis;
+        ChannelHandles(ConfigTree tree, Channel c) {
+            value          = tree.getHandle(c.name()+":VALUE");
+            offset         = tree.getHandle(c.name()+":OFFSET");
+            range_i        = tree.getHandle(c.name()+RANGE_I);
+            buf_bps        = tree.getHandle(c.name()+":BUF_BPS");
+            buf_lsb2native = tree.getHandle(c.name()+":BUF_LSB2NATIVE");
+            mapping        = tree.getHandle(c.name()+":MAPPING");
+            analysis       = tree.getHandle(c.name()+":ANALYSIS");
+        }
+    }
+    private final ChannelHandles[] ch_handles = new ChannelHandles[2];
+    // Live readings, published once per frame so math channels see a coherent set
+    private final LiveSnapshot live = new LiveSnapshot();
+    // Writer side bookkeeping for the frame being decoded, only touched on the cb_thread.
+    // Indexed by Channel.ordinal().  A frame is CH1, CH2, then REAL_PWR, and may span packets.
+    // Nothing is published until its last record has been decoded.
+    private final boolean[] sample_in_frame     = new boolean[Channel.values().length];
+    private final double[]  sample_timestamp_utc = new double[Channel.values().length];
+    private final float[]   sample_value         = new float[Channel.values().length];
+    private static final Channel[] INPUT_CHANNELS = {Channel.CH1, Channel.CH2};
+    // Typed accessors generated from the tree of the bundled firmware
+    private final MeterTree meter;
+
+    // Settings put back after a reconnect, in the order they're written.  All of them are int valued.
+    // A channel's analysis and range only mean something under its mapping (and SHARED), so they
+    // come after them.
+    private final ConfigTree.NodeHandle[] restore_inputs;
+    // Written after the inputs, streaming last so the first frames come with the right settings
+    private final ConfigTree.NodeHandle[] restore_sampling;
+    // What restore_inputs and restore_sampling held when the link dropped
+    private final Object[] restore_want;
+    // Don't bother correcting the meter's clock by less than this
+    private static final int CLOCK_SLACK_S = 2;
+    private final ReconnectSupervisor reconnector;
+    private boolean auto_reconnect = true;
+    // Heartbeats and reconnect attempts wait on the meter, so they run here and not on the timer
+    // wheel's pool, where they could starve every other meter's timers
+    private final Dispatcher work_lane;
+    private final AtomicBoolean heartbeat_queued = new AtomicBoolean(false);
+
     ////////////////////////////////
     // MEMBERS FOR TRACKING AVAILABLE INPUTS AND RANGES
     ////////////////////////////////
@@ -65,7 +116,7 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
         public MathInputDescriptor(String name, String units) {super(name,units);}
         public abstract void onChosen();
         public abstract boolean meterSettingsAreValid();
-        public abstract MeterReading calculate();
+        public abstract MeterReading calculate(LiveSnapshot.View live);
     }
 
     public static class InputDescriptor extends MooshimeterDeviceBase.InputDescriptor{
@@ -116,6 +167,46 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
     public MooshimeterDevice(PeripheralWrapper wrap) {
         super(wrap);
         tree = new ConfigTree();
+        ch_handles[Channel.CH1.ordinal()] = new ChannelHandles(tree,Channel.CH1);
+        ch_handles[Channel.CH2.ordinal()] = new ChannelHandles(tree,Channel.CH2);
+        meter          = new MeterTree(tree);
+        restore_inputs = new ConfigTree.NodeHandle[] {
+                meter.shared,
+                meter.ch1Mapping, meter.ch1Analysis, meter.ch1RangeI,
+                meter.ch2Mapping, meter.ch2Analysis, meter.ch2RangeI,
+        };
+        restore_sampling = new ConfigTree.NodeHandle[] {
+                meter.samplingRate, meter.samplingDepth, meter.samplingTrigger,
+        };
+        restore_want = new Object[restore_inputs.length+restore_sampling.length];
+        work_lane = new Dispatcher("work_" + wrap.getAddress(), true);
+        reconnector = new ReconnectSupervisor(wrap, work_lane, new ReconnectSupervisor.Session() {
+            @Override
+            public void onLinkLost() {
+                int i = 0;
+                for(ConfigTree.NodeHandle h : restore_inputs) {
+                    restore_want[i++] = h.getValue();
+                }
+                for(ConfigTree.NodeHandle h : restore_sampling) {
+                    restore_want[i++] = h.getValue();
+                }
+            }
+            @Override
+            public int restore() {
+                return restoreSession();
+            }
+            @Override
+            public void onReconnected() {
+                watchForDisconnect();
+                startRssiPolling();
+                startHeartbeat();
+            }
+            @Override
+            public void onGaveUp() {
+                mInitialized = false;
+                delegate.onDisconnect();
+            }
+        });
         input_descriptors.put(Channel.CH1,new Chooser<MooshimeterDeviceBase.InputDescriptor>());
         input_descriptors.put(Channel.CH2,new Chooser<MooshimeterDeviceBase.InputDescriptor>());
         input_descriptors.put(Channel.MATH,new Chooser<MooshimeterDeviceBase.InputDescriptor>());
@@ -135,8 +226,11 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
     // Private helpers
     ////////////////////////////////
 
+    private ChannelHandles handles(Channel c) {
+        return ch_handles[c.ordinal()];
+    }
     private ConfigTree.ConfigNode getInputNode(Channel c) {
-        ConfigTree.ConfigNode rval = tree.getNode(c.name() + ":MAPPING");
+        ConfigTree.ConfigNode rval = handles(c).mapping.get();
         while(true) {
             if (rval.ntype == ConfigTree.NTYPE.LINK) {
                 rval = tree.getNode((String)rval.getValue());
@@ -147,15 +241,6 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
             }
         }
     }
-    private Object getValueAt(String p) {
-        Object rval = tree.getValueAt(p);
-        if(rval==null) {
-            Log.w(TAG,"SOMEONE REQUESTED VALUE OF AN UNINITIALIZED NODE");
-            // FIXME: hack
-            return 0;
-        }
-        return rval;
-    }
     private static List<String> getChildNameList(ConfigTree.ConfigNode n) {
         List<String> inputs = new ArrayList<String>();
         for(ConfigTree.ConfigNode child:n.children) {
@@ -187,7 +272,7 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
         Chooser<MooshimeterDeviceBase.InputDescriptor> chooser = input_descriptors.get(c);
         for(InputDescriptor d:(List<InputDescriptor>)(List<?>)chooser.getChoices()) {
             if(getInputNode(c) == d.input_node) {
-                if(d.analysis_node == tree.getNode(c.name()+":ANALYSIS").getChosen()) {
+                if(d.analysis_node == handles(c).analysis.get().getChosen()) {
                     chooser.choose(d);
                     return true;
                 }
@@ -197,9 +282,9 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
     }
     private float[] interpretSampleBuffer(Channel c, byte[] payload) {
         ByteBuffer b = ByteBuffer.wrap(payload);
-        int bytes_per_sample = (Integer)tree.getValueAt(c.name()+":BUF_BPS");
+        int bytes_per_sample = handles(c).buf_bps.getIntValue();
         bytes_per_sample /= 8;
-        float lsb2native = (Float)tree.getValueAt(c.name()+":BUF_LSB2NATIVE");
+        float lsb2native = handles(c).buf_lsb2native.getFloatValue();
         int n_samples = payload.length/bytes_per_sample;
         float[] rval = new float[n_samples];
         for(int i = 0; i < n_samples; i++) {
@@ -213,6 +298,35 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
         return rval;
     }
 
+    private void stageSample(Channel c, double timestamp_utc, float val) {
+        live.stage(c, timestamp_utc, val);
+        sample_in_frame[c.ordinal()]      = true;
+        sample_timestamp_utc[c.ordinal()] = timestamp_utc;
+        sample_value[c.ordinal()]         = val;
+        // Trees without REAL_PWR end the frame at CH2.  The handle only resolves again when the
+        // tree is replaced, so this is no path lookup per sample.
+        Channel last = meter.realPwr.get()!=null ? Channel.MATH : Channel.CH2;
+        if(c==last) {
+            endFrame();
+        }
+    }
+
+    // The frame's last record is in, publish it and tell the delegate
+    private void endFrame() {
+        live.publish();
+        for(Channel c : INPUT_CHANNELS) {
+            if(sample_in_frame[c.ordinal()]) {
+                sample_in_frame[c.ordinal()] = false;
+                handleSampleReceived(c, sample_timestamp_utc[c.ordinal()], sample_value[c.ordinal()]);
+            }
+        }
+        // The math channel goes last, it's computed from the others
+        if(sample_in_frame[Channel.MATH.ordinal()]) {
+            sample_in_frame[Channel.MATH.ordinal()] = false;
+            delegate.onSampleReceived(sample_timestamp_utc[Channel.MATH.ordinal()],Channel.MATH, getValue(Channel.MATH));
+        }
+    }
+
     void handleSampleReceived(Channel c, double timestamp_utc, float val) {
         MeterReading reading = wrapMeterReading(c,val);
         RangeDescriptor rd = getRangeDescriptorForChannel(c);
@@ -313,9 +427,9 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
                 return valid;
             }
             @Override
-            public MeterReading calculate() {
-                MeterReading rval = MeterReading.mult(getValue(Channel.CH1),getValue(Channel.CH2));
-                rval.value = (Float)tree.getValueAt(REAL_PWR);
+            public MeterReading calculate(LiveSnapshot.View live) {
+                MeterReading rval = MeterReading.mult(getValue(Channel.CH1,live),getValue(Channel.CH2,live));
+                rval.value = live.real_pwr;
                 return rval;
             }
         };
@@ -333,8 +447,8 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
                 return valid;
             }
             @Override
-            public MeterReading calculate() {
-                return MeterReading.mult(getValue(Channel.CH1),getValue(Channel.CH2));
+            public MeterReading calculate(LiveSnapshot.View live) {
+                return MeterReading.mult(getValue(Channel.CH1,live),getValue(Channel.CH2,live));
             }
         };
         l.add(mid);
@@ -351,11 +465,11 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
                 return valid;
             }
             @Override
-            public MeterReading calculate() {
+            public MeterReading calculate(LiveSnapshot.View live) {
                 // We use MeterReading.mult to ensure we get the decimals right
-                MeterReading rval = MeterReading.mult(getValue(Channel.CH1),getValue(Channel.CH2));
+                MeterReading rval = MeterReading.mult(getValue(Channel.CH1,live),getValue(Channel.CH2,live));
                 // Then overload the value
-                rval.value = (Float)tree.getValueAt(REAL_PWR)/rval.value;
+                rval.value = live.real_pwr/rval.value;
                 rval.units = "";
                 return rval;
             }
@@ -377,10 +491,10 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
                 return valid;
             }
             @Override
-            public MeterReading calculate() {
-                float volts = getValue(Channel.CH1).value;
+            public MeterReading calculate(LiveSnapshot.View live) {
+                float volts = getValue(Channel.CH1,live).value;
                 float delta_c = (float) ThermocoupleHelper.K.voltsToDegC(volts);
-                float internal_temp = getValue(Channel.CH2).value;
+                float internal_temp = getValue(Channel.CH2,live).value;
                 MeterReading rval;
                 if(Util.getPreferenceBoolean(Util.preference_keys.USE_FAHRENHEIT)) {
                     delta_c = Util.TemperatureUnitsHelper.relK2F(delta_c);
@@ -434,88 +548,84 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
                 delegate.onInputChange(Channel.CH2, getSelectedDescriptor(Channel.CH2));
             }
         });
-        attachCallback("CH1:VALUE",new NotifyHandler() {
+        attachCallback("CH1:VALUE",new FloatNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                handleSampleReceived(Channel.CH1,timestamp_utc,(Float)payload);
+            public void onFloat(double timestamp_utc, float payload) {
+                stageSample(Channel.CH1,timestamp_utc,payload);
             }
         });
-        attachCallback("CH1:OFFSET",new NotifyHandler() {
+        attachCallback("CH1:OFFSET",new FloatNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                delegate.onOffsetChange(Channel.CH1, wrapMeterReading(Channel.CH1,(Float)payload, true));
+            public void onFloat(double timestamp_utc, float payload) {
+                delegate.onOffsetChange(Channel.CH1, wrapMeterReading(Channel.CH1, payload, true));
             }
         });
-        attachCallback("CH2:VALUE",new NotifyHandler() {
+        attachCallback("CH2:VALUE",new FloatNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                handleSampleReceived(Channel.CH2,timestamp_utc,(Float)payload);
+            public void onFloat(double timestamp_utc, float payload) {
+                stageSample(Channel.CH2,timestamp_utc,payload);
         }
         });
-        attachCallback("CH2:OFFSET",new NotifyHandler() {
+        attachCallback("CH2:OFFSET",new FloatNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                delegate.onOffsetChange(Channel.CH2, wrapMeterReading(Channel.CH2, (Float)payload, true));
+            public void onFloat(double timestamp_utc, float payload) {
+                delegate.onOffsetChange(Channel.CH2, wrapMeterReading(Channel.CH2, payload, true));
             }
         });
-        attachCallback("CH1:BUF", new NotifyHandler() {
+        attachCallback("CH1:BUF", new BytesNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
+            public void onBytes(double timestamp_utc, byte[] payload) {
                 // payload is a byte[] which we must translate in to
-                float[] samplebuf = interpretSampleBuffer(Channel.CH1,(byte[])payload);
+                float[] samplebuf = interpretSampleBuffer(Channel.CH1,payload);
                 float dt = (float)getSampleRateHz();
                 dt = (float)1.0/dt;
                 delegate.onBufferReceived(timestamp_utc, Channel.CH1, dt, samplebuf);
             }
         });
-        attachCallback("CH2:BUF", new NotifyHandler() {
+        attachCallback("CH2:BUF", new BytesNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
+            public void onBytes(double timestamp_utc, byte[] payload) {
                 // payload is a byte[] which we must translate in to
-                float[] samplebuf = interpretSampleBuffer(Channel.CH2,(byte[])payload);
+                float[] samplebuf = interpretSampleBuffer(Channel.CH2,payload);
                 float dt = (float)getSampleRateHz();
                 dt = (float)1.0/dt;
                 delegate.onBufferReceived(timestamp_utc, Channel.CH2, dt, samplebuf);
             }
         });
-        attachCallback(REAL_PWR, new NotifyHandler() {
+        attachCallback(REAL_PWR, new FloatNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                delegate.onSampleReceived(timestamp_utc,Channel.MATH, getValue(Channel.MATH));
+            public void onFloat(double timestamp_utc, float payload) {
+                // Last record of the frame, this publishes it
+                stageSample(Channel.MATH,timestamp_utc,payload);
             }
         });
-        attachCallback("CH1:RANGE_I", new NotifyHandler() {
+        attachCallback("CH1:RANGE_I", new IntNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                int i = (Integer)payload;
+            public void onInt(double timestamp_utc, int i) {
                 delegate.onRangeChange(Channel.CH1, (RangeDescriptor) getSelectedDescriptor(Channel.CH1).ranges.get(i));
             }
         });
-        attachCallback("CH2:RANGE_I", new NotifyHandler() {
+        attachCallback("CH2:RANGE_I", new IntNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                int i = (Integer)payload;
+            public void onInt(double timestamp_utc, int i) {
                 delegate.onRangeChange(Channel.CH2, (RangeDescriptor) getSelectedDescriptor(Channel.CH2).ranges.get(i));
             }
         });
-        attachCallback("SAMPLING:RATE", new NotifyHandler() {
+        attachCallback("SAMPLING:RATE", new IntNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                int i = (Integer)payload;
+            public void onInt(double timestamp_utc, int i) {
                 delegate.onSampleRateChanged(i, getSampleRateHz());
             }
         });
-        attachCallback("SAMPLING:DEPTH", new NotifyHandler() {
+        attachCallback("SAMPLING:DEPTH", new IntNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                int i = (Integer)payload;
+            public void onInt(double timestamp_utc, int i) {
                 delegate.onBufferDepthChanged(i, getBufferDepth());
             }
         });
-        attachCallback("LOG:ON", new NotifyHandler() {
+        attachCallback("LOG:ON", new IntNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                int i = (Integer)payload;
+            public void onInt(double timestamp_utc, int i) {
                 delegate.onLoggingStatusChanged(i != 0, getLoggingStatus(), getLoggingStatusMessage());
             }
         });
@@ -525,31 +635,151 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
                 delegate.onLoggingStatusChanged(getLoggingOn(), getLoggingStatus(), getLoggingStatusMessage());
             }
         });
-        attachCallback("BAT_V", new NotifyHandler() {
+        attachCallback("BAT_V", new FloatNotifyHandler() {
             @Override
-            public void onReceived(double timestamp_utc, Object payload) {
-                delegate.onBatteryVoltageReceived((Float) payload);
+            public void onFloat(double timestamp_utc, float payload) {
+                delegate.onBatteryVoltageReceived(payload);
             }
         });
 
         // Start a heartbeat.  The Mooshimeter needs to hear from the phone every 20 seconds or it
         // assumes the Android device has fallen in to a phantom connection mode and disconnects itself.
         // We will just read out the PCB version every 10 seconds to satisfy this constraint.
-        Util.postDelayed(heartbeat_cb, 1000);
+        startHeartbeat();
 
+        mInitialized = true;
         return rval;
     }
 
+    private void startHeartbeat() {
+        if(heartbeat_timer!=null) {
+            heartbeat_timer.cancel();
+        }
+        heartbeat_timer = Util.schedulePeriodic(heartbeat_cb, 1000, 10000);
+    }
+
+    private TimerWheel.Timeout heartbeat_timer = null;
     private Runnable heartbeat_cb = new Runnable() {
         @Override
         public void run() {
             if(!isConnected()) {
+                heartbeat_timer.cancel();
                 return;
             }
-            tree.command("PCB_VERSION");
-            Util.postDelayed(heartbeat_cb,10000);
+            // Skip this beat if the last one is still queued or waiting on the meter
+            if(!heartbeat_queued.compareAndSet(false, true)) {
+                return;
+            }
+            work_lane.dispatch(heartbeat);
         }
     };
+    private Runnable heartbeat = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if(isConnected()) {
+                    meter.reqPcbVersion().await();
+                }
+            } finally {
+                heartbeat_queued.set(false);
+            }
+        }
+    };
+
+    @Override
+    public int disconnect() {
+        if(reconnector.cancel()) {
+            // Nobody's listening for this disconnect while we're between connections
+            delegate.onDisconnect();
+        }
+        return super.disconnect();
+    }
+
+    @Override
+    protected void onConnectionLost() {
+        if(mInitialized && auto_reconnect) {
+            reconnector.onLinkLost();
+        } else {
+            super.onConnectionLost();
+        }
+    }
+
+    /**
+     * Puts the meter back the way it was before the link dropped on a fresh connection.  The tree
+     * we already have is reused, the settings we care about are re-read in one pipelined refresh
+     * and only the ones the meter lost are written back, in one batch.
+     * @return 0 on success
+     */
+    private int restoreSession() {
+        if(0!=tree.reattach(mPwrap, mUUID.METER_SERIN, mUUID.METER_SEROUT)) {
+            return -1;
+        }
+        List<ConfigTree.ConfigNode> nodes = new ArrayList<>();
+        for(ConfigTree.NodeHandle h : restore_inputs) {
+            nodes.add(h.get());
+        }
+        for(ConfigTree.NodeHandle h : restore_sampling) {
+            nodes.add(h.get());
+        }
+        nodes.add(meter.timeUtc.get());
+        if(0!=tree.refresh(nodes, ConfigTree.REFRESH_WINDOW, tree.getLatency().getTimeoutMs())) {
+            return -1;
+        }
+        int n_writes = 0;
+        Deferred<Object> last = null;
+        tree.beginBatch();
+        int i = 0;
+        boolean shared_moved = false;
+        // Whether the channel whose settings we're on was remapped.  Once a channel's mapping
+        // moves, or SHARED moves under a channel mapped to it, the meter may have reset the
+        // settings that hang off it, so those are written back too.  The other channel is left alone.
+        boolean remapped = false;
+        for(ConfigTree.NodeHandle h : restore_inputs) {
+            Object want = restore_want[i++];
+            boolean differs = want!=null && !want.equals(h.getValue());
+            if(h==meter.shared) {
+                shared_moved = differs;
+            } else if(h==meter.ch1Mapping || h==meter.ch2Mapping) {
+                int on_shared = h==meter.ch1Mapping ? MeterTree.CH1_MAPPING_SHARED : MeterTree.CH2_MAPPING_SHARED;
+                remapped = differs || (shared_moved && want!=null && ((Number)want).intValue()==on_shared);
+            } else {
+                differs |= want!=null && remapped;
+            }
+            if(differs) {
+                last = h.sendIntAsync(((Number)want).intValue());
+                n_writes++;
+            }
+        }
+        for(ConfigTree.NodeHandle h : restore_sampling) {
+            Object want = restore_want[i++];
+            if(want!=null && !want.equals(h.getValue())) {
+                last = h.sendIntAsync(((Number)want).intValue());
+                n_writes++;
+            }
+        }
+        int now = (int)Util.getUTCTime();
+        if(Math.abs(meter.getTimeUtc()-now) > CLOCK_SLACK_S) {
+            // The meter rebooted or its clock drifted while we were away
+            last = meter.setTimeUtc(now);
+            n_writes++;
+        }
+        tree.endBatch();
+        Log.d(TAG, "Restoring session with " + n_writes + " writes");
+        if(last!=null && !last.await()) {
+            return -1;
+        }
+        return 0;
+    }
+
+    public void setAutoReconnect(boolean on) {
+        auto_reconnect = on;
+    }
+    public boolean getAutoReconnect() {
+        return auto_reconnect;
+    }
+    public ReconnectSupervisor getReconnectSupervisor() {
+        return reconnector;
+    }
 
     ////////////////////////////////
     // MooshimeterControlInterface methods
@@ -557,27 +787,27 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
 
     @Override
     public void pause() {
-        tree.command("SAMPLING:TRIGGER 0");
+        meter.setSamplingTrigger(MeterTree.SAMPLING_TRIGGER_OFF).await();
     }
     @Override
     public void oneShot() {
-        tree.command("SAMPLING:TRIGGER 1");
+        meter.setSamplingTrigger(MeterTree.SAMPLING_TRIGGER_SINGLE).await();
     }
     @Override
     public void stream() {
-        tree.command("SAMPLING:TRIGGER 2");
+        meter.setSamplingTrigger(MeterTree.SAMPLING_TRIGGER_CONTINUOUS).await();
     }
     @Override
     public void reboot() {
-        tree.command("REBOOT 0");
+        meter.setReboot(MeterTree.REBOOT_NORMAL).await();
     }
     @Override
     public void enterShippingMode() {
-        tree.command("REBOOT 1");
+        meter.setReboot(MeterTree.REBOOT_SHIPMODE).await();
     }
     @Override
     public int getPCBVersion() {
-        Object o = tree.getValueAt("PCB_VERSION");
+        Object o = meter.pcbVersion.getValue();
         if(o==null) {
             return 8;
         }
@@ -586,24 +816,24 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
 
     @Override
     public double getUTCTime() {
-        return (Double)tree.getValueAt("TIME_UTC");
+        return meter.getTimeUtc();
     }
     @Override
     public void setTime(double utc_time) {
-        tree.command("TIME_UTC "+(int)Util.getUTCTime());
+        meter.setTimeUtc((int)Util.getUTCTime()).await();
     }
     @Override
     public MeterReading getOffset(Channel c) {
-        return wrapMeterReading(c,(Float)tree.getValueAt(c.name()+":OFFSET"),true);
+        return wrapMeterReading(c,handles(c).offset.getFloatValue(),true);
     }
     @Override
     public void setOffset(Channel c, float offset) {
-        tree.command(c.name()+":OFFSET "+Float.toString(offset));
+        handles(c).offset.sendFloatAsync(offset).await();
     }
     @Override
     public boolean bumpRange(Channel channel, boolean expand) {
         ConfigTree.ConfigNode rnode = getInputNode(channel);
-        int cnum = (Integer)tree.getValueAt(channel.name()+ RANGE_I);
+        int cnum = handles(channel).range_i.getIntValue();
         int n_choices = rnode.children.size();
         // If we're not wrapping and we're against a wall
         if (cnum == 0 && !expand) {
@@ -614,19 +844,19 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
         }
         cnum += expand?1:-1;
         cnum %= n_choices;
-        tree.command(channel.name() + ":RANGE_I " + cnum);
+        handles(channel).range_i.sendIntAsync(cnum).await();
         return true;
     }
     private float getMinRangeForChannel(Channel c) {
         ConfigTree.ConfigNode rnode = getInputNode(c);
-        int cnum = (Integer)tree.getValueAt(c.name()+ RANGE_I);
+        int cnum = handles(c).range_i.getIntValue();
         cnum = cnum>0?cnum-1:cnum;
         ConfigTree.ConfigNode choice = rnode.children.get(cnum);
         return (float)0.9*Float.parseFloat(choice.getShortName());
     }
     protected float getMaxRangeForChannel(Channel c) {
         ConfigTree.ConfigNode rnode = getInputNode(c);
-        int cnum = (Integer)tree.getValueAt(c.name()+ RANGE_I);
+        int cnum = handles(c).range_i.getIntValue();
         ConfigTree.ConfigNode choice = rnode.children.get(cnum);
         return (float)1.1*Float.parseFloat(choice.getShortName());
     }
@@ -651,41 +881,48 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
         boolean rval = false;
         rval |= applyAutorange(Channel.CH1);
         rval |= applyAutorange(Channel.CH2);
-        boolean rms_on = tree.getNode("CH1:ANALYSIS").getChosen().getShortName().equals("RMS")
-                ||       tree.getNode("CH2:ANALYSIS").getChosen().getShortName().equals("RMS");
+        boolean rms_on = handles(Channel.CH1).analysis.get().getChosen().getShortName().equals("RMS")
+                ||       handles(Channel.CH2).analysis.get().getChosen().getShortName().equals("RMS");
+        // Rate and depth changes are independent, so pack them together
+        Deferred<Object> last = null;
+        tree.beginBatch();
         if(getRateAuto()) {
             if( rms_on ) {
-                if(!tree.getChosenName("SAMPLING:RATE").equals("4000")) {
-                    tree.command("SAMPLING:RATE 5");
+                if(meter.getSamplingRate()!=MeterTree.SAMPLING_RATE_4000) {
+                    last = meter.setSamplingRate(MeterTree.SAMPLING_RATE_4000);
                 }
             } else {
-                if(!tree.getChosenName("SAMPLING:RATE").equals("125")) {
-                    tree.command("SAMPLING:RATE 0");
+                if(meter.getSamplingRate()!=MeterTree.SAMPLING_RATE_125) {
+                    last = meter.setSamplingRate(MeterTree.SAMPLING_RATE_125);
                 }
             }
         }
         if(getDepthAuto()) {
             if( rms_on ) {
-                if(!tree.getChosenName("SAMPLING:DEPTH").equals("256")) {
-                    tree.command("SAMPLING:DEPTH 3");
+                if(meter.getSamplingDepth()!=MeterTree.SAMPLING_DEPTH_256) {
+                    last = meter.setSamplingDepth(MeterTree.SAMPLING_DEPTH_256);
                 }
             } else {
-                if(!tree.getChosenName("SAMPLING:DEPTH").equals("64")) {
-                    tree.command("SAMPLING:DEPTH 1");
+                if(meter.getSamplingDepth()!=MeterTree.SAMPLING_DEPTH_64) {
+                    last = meter.setSamplingDepth(MeterTree.SAMPLING_DEPTH_64);
                 }
             }
         }
+        tree.endBatch();
+        if(last!=null) {
+            last.await();
+        }
         return rval;
     }
 
     @Override
     public void setName(String name) {
-        tree.command("NAME "+name);
+        meter.setName(name).await();
     }
 
     @Override
     public String getName() {
-        return (String)tree.getValueAt("NAME");
+        return meter.getName();
     }
 
     protected float getEnob(final Channel c) {
@@ -722,17 +959,16 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
         return getSelectedDescriptor(channel).name;
     }
     public int getSampleRateIndex() {
-        return (Integer)getValueAt("SAMPLING:RATE");
+        return meter.getSamplingRate();
     }
     @Override
     public int getSampleRateHz() {
-        String dstring = tree.getChosenName("SAMPLING:RATE");
+        String dstring = tree.getChosenName(meter.samplingRate);
         return Integer.parseInt(dstring);
     }
     @Override
     public int setSampleRateIndex(int i) {
-        String cmd = "SAMPLING:RATE " + i;
-        tree.command(cmd);
+        meter.setSamplingRate(i).await();
         return 0;
     }
     @Override
@@ -741,13 +977,12 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
     }
     @Override
     public int getBufferDepth() {
-        String dstring = tree.getChosenName("SAMPLING:DEPTH");
+        String dstring = tree.getChosenName(meter.samplingDepth);
         return Integer.parseInt(dstring);
     }
     @Override
     public int setBufferDepthIndex(int i) {
-        String cmd = "SAMPLING:DEPTH " + i;
-        tree.command(cmd);
+        meter.setSamplingDepth(i).await();
         return 0;
     }
     @Override
@@ -757,24 +992,23 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
     int[] preBufferModeStash = new int[]{0,0};
     @Override
     public void setBufferMode(Channel c, boolean on) {
-        String cmd = c.name()+":ANALYSIS";
+        int analysis;
         if(on) {
-            preBufferModeStash[c.ordinal()] = (Integer)tree.getValueAt(cmd);
-            cmd += " 2";
+            preBufferModeStash[c.ordinal()] = handles(c).analysis.getIntValue();
+            analysis = c==Channel.CH1?MeterTree.CH1_ANALYSIS_BUFFER:MeterTree.CH2_ANALYSIS_BUFFER;
         } else {
-            cmd += " " + Integer.toString(preBufferModeStash[c.ordinal()]);
+            analysis = preBufferModeStash[c.ordinal()];
         }
-        tree.command(cmd);
+        handles(c).analysis.sendIntAsync(analysis).await();
     }
     @Override
     public boolean getLoggingOn() {
-        int i = (Integer)getValueAt("LOG:ON");
+        int i = meter.getLogOn();
         return i!=0;
     }
     @Override
     public void setLoggingOn(boolean on) {
-        int i=on?1:0;
-        tree.command("LOG:ON "+i);
+        meter.setLogOn(on?1:0).await();
     }
     @Override
     public String getLoggingStatusMessage() {
@@ -790,22 +1024,31 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
     }
     @Override
     public void setLoggingInterval(int ms) {
-        tree.command("LOG:INTERVAL "+Integer.toString(ms/1000));
+        meter.setLogInterval(ms/1000).await();
     }
     @Override
     public int getLoggingIntervalMS() {
-        return 1000*(Integer)getValueAt("LOG:INTERVAL");
+        return 1000*meter.getLogInterval();
+    }
+    /**
+     * @return a coherent view of the latest CH1, CH2 and REAL_PWR readings, all from the same frame
+     */
+    public LiveSnapshot.View getLiveSnapshot(LiveSnapshot.View into) {
+        return live.read(into);
     }
     @Override
     public MeterReading getValue(Channel c) {
+        return getValue(c, live.read());
+    }
+    public MeterReading getValue(Channel c, LiveSnapshot.View snapshot) {
         switch(c) {
             case CH1:
             case CH2:
-                return wrapMeterReading(c, (Float) tree.getValueAt(c.name() + ":VALUE"));
+                return wrapMeterReading(c, snapshot.get(c));
             case MATH:
                 MathInputDescriptor id = (MathInputDescriptor)input_descriptors.get(Channel.MATH).getChosen();
                 if(id.meterSettingsAreValid()) {
-                    return id.calculate();
+                    return id.calculate(snapshot);
                 } else {
                     return new MeterReading(0,0,0,"INVALID INPUTS");
                 }
@@ -814,12 +1057,12 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
     }
     @Override
     public int getLoggingStatus() {
-        return (Integer)getValueAt("LOG:STATUS");
+        return meter.getLogStatus();
     }
     @Override
     public String getRangeLabel(Channel c) {
         InputDescriptor id = (InputDescriptor)getSelectedDescriptor(c);
-        int range_i = (Integer)tree.getValueAt(c.name() + RANGE_I);
+        int range_i = handles(c).range_i.getIntValue();
         RangeDescriptor rd =(RangeDescriptor)id.ranges.get(range_i);
         return rd.name;
     }
@@ -830,7 +1073,7 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
     @Override
     public int setRange(Channel c, MooshimeterDeviceBase.RangeDescriptor r) {
         getSelectedDescriptor(c).ranges.choose(r);
-        tree.command(c.name() + ":RANGE_I " + getSelectedDescriptor(c).ranges.getChosenI());
+        handles(c).range_i.sendIntAsync(getSelectedDescriptor(c).ranges.getChosenI()).await();
         return 0;
     }
     @Override
@@ -855,13 +1098,19 @@ public class MooshimeterDevice extends MooshimeterDeviceBase{
 
                 chooser.choose(cast);
                 // Reset range manually... probably a cleaner way to do this
-                tree.getNode(c.name()+ RANGE_I).setValue(0);
+                handles(c).range_i.get().setValue(0);
 
-                cast.input_node.choose();
+                // Pack all the writes in to one frame, then wait once for the whole sequence
+                tree.beginBatch();
+                Deferred<Object> last = cast.input_node.chooseAsync();
                 if(cast.shared_node!=null) {
-                    cast.shared_node.choose();
+                    last = cast.shared_node.chooseAsync();
                 }
-                cast.analysis_node.choose();
+                last = cast.analysis_node.chooseAsync();
+                tree.endBatch();
+                last.await();
+                // The mapping change invalidated the settings that depend on it, re-read just those
+                tree.refreshInvalidated();
                 break;
             case MATH:
                 MathInputDescriptor mcast = (MathInputDescriptor)descriptor;
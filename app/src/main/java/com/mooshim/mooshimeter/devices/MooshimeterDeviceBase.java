@@ -152,14 +152,23 @@ public abstract class MooshimeterDeviceBase extends BLEDeviceBase implements Moo
             }
         };
 
+        watchForDisconnect();
+        return 0;
+    }
+
+    protected void watchForDisconnect() {
         disconnect_handle = mPwrap.addConnectionStateCB(BluetoothGatt.STATE_DISCONNECTED, new Runnable() {
             @Override
             public void run() {
                 mPwrap.cancelConnectionStateCB(disconnect_handle);
-                delegate.onDisconnect();
+                onConnectionLost();
             }
         });
-        return 0;
+    }
+
+    // Called once the link is down.  mInitialized is still set if we didn't ask for the disconnect.
+    protected void onConnectionLost() {
+        delegate.onDisconnect();
     }
 
     abstract float getEnob(Channel c);
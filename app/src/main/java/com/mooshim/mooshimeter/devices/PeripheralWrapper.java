@@ -28,10 +28,16 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
+import android.os.Build;
 import android.util.Log;
 
 import com.mooshim.mooshimeter.interfaces.NotifyHandler;
+import com.mooshim.mooshimeter.interfaces.Transport;
+import com.mooshim.mooshimeter.common.Dispatcher;
+import com.mooshim.mooshimeter.common.LatencyTracker;
+import com.mooshim.mooshimeter.common.NotifyRing;
 import com.mooshim.mooshimeter.common.StatLockManager;
+import com.mooshim.mooshimeter.common.TimerWheel;
 import com.mooshim.mooshimeter.common.Util;
 
 import java.lang.reflect.Method;
@@ -41,12 +47,23 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class PeripheralWrapper {
+public class PeripheralWrapper implements Transport {
     private static final String TAG="PeripheralWrapper";
-    private static final ReentrantLock bleLock= new ReentrantLock(true);
-    private static final ReentrantLock conditionLock= new ReentrantLock(true);
+    // How many peripherals may have a GATT operation outstanding at once.  Before Lollipop the
+    // stack falls over if operations on different devices overlap, so those get one at a time.
+    private static final int MAX_CONCURRENT_OPS = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? 4 : 1;
+    private static final Semaphore gattSlots = new Semaphore(MAX_CONCURRENT_OPS, true);
+
+    // Operations on this peripheral queue up here in arrival order.  Only one is outstanding at a
+    // time, since a BluetoothGatt only tracks one pending operation.
+    private final ReentrantLock bleLock = new ReentrantLock(true);
+    // Guards the completion conditions below.  Held from issuing an operation until waiting on its
+    // completion, so a GATT callback can't signal before anyone is waiting.
+    private final ReentrantLock conditionLock = new ReentrantLock(true);
 
     protected Context mContext;
     private BluetoothGatt mBluetoothGatt;
@@ -60,11 +77,14 @@ public class PeripheralWrapper {
 
     private int connectionStateCBHandle = 0;
 
+    private int mBuildTime = 0;
+    // Set on connect if we're letting Android serve discovery from its cache
+    private boolean mLayoutTrusted = false;
+
     private StatLockManager bleStateCondition    ;
     private StatLockManager bleDiscoverCondition ;
     private StatLockManager bleReadCondition     ;
     private StatLockManager bleWriteCondition    ;
-    private StatLockManager bleChangedCondition  ;
     private StatLockManager bleDReadCondition    ;
     private StatLockManager bleDWriteCondition   ;
     private StatLockManager bleRWriteCondition   ;
@@ -73,6 +93,69 @@ public class PeripheralWrapper {
     public int mRssi;
     public int mConnectionState;
 
+    // Measured latency of each kind of GATT operation on this connection.  The timeouts start
+    // at the old fixed values and adapt once there's enough data.
+    private final LatencyTracker readLatency   = new LatencyTracker("read",   1000, 100, 3000);
+    private final LatencyTracker writeLatency  = new LatencyTracker("write",  1000, 100, 3000);
+    private final LatencyTracker dwriteLatency = new LatencyTracker("dwrite", 3000, 300, 6000);
+    private final LatencyTracker rssiLatency   = new LatencyTracker("rssi",    500, 100, 2000);
+
+    // Largest notification payload with the default ATT MTU of 23
+    public static final int NOTIFY_SLOT_SIZE = 20;
+    public static final int NOTIFY_RING_SLOTS = 256;
+    // Notifications are copied in here on the binder thread and drained on the cb thread
+    private final NotifyRing mNotifyRing = new NotifyRing(NOTIFY_RING_SLOTS, NOTIFY_SLOT_SIZE);
+    // Where notifications and connection state callbacks run.  null means the shared cb_thread.
+    private volatile Dispatcher mCbLane = null;
+    // Set while a drain is queued on the cb thread, so a burst of notifications only queues one
+    private final AtomicBoolean mNotifyDrainPending = new AtomicBoolean(false);
+    private final Runnable mNotifyDrain = new Runnable() {
+        @Override
+        public void run() {
+            // Clear before draining so a frame landing after the last check queues another drain
+            mNotifyDrainPending.set(false);
+            mNotifyRing.drain(mNotifySink);
+            for(int i = 0; i < mBatchHandlers.size(); i++) {
+                mBatchHandlers.get(i).onBatchEnd();
+            }
+            mBatchHandlers.clear();
+        }
+    };
+    // Handlers that have had onBatchStart called during the current drain.  cb thread only.
+    private final List<NotifyHandler> mBatchHandlers = new ArrayList<>();
+    // One reusable payload per length, lent to handlers for the duration of onReceived.  cb thread only.
+    private final byte[][] mNotifyPayloads = new byte[NOTIFY_SLOT_SIZE+1][];
+    private final NotifyRing.Sink mNotifySink = new NotifyRing.Sink() {
+        @Override
+        public void onFrame(Object key, double timestamp, byte[] buf, int len) {
+            final NotifyHandler cb = mNotifyCB.get(key);
+            if (cb != null) {
+                if(!mBatchHandlers.contains(cb)) {
+                    mBatchHandlers.add(cb);
+                    cb.onBatchStart();
+                }
+                byte[] payload = mNotifyPayloads[len];
+                if(payload==null) {
+                    payload = new byte[len];
+                    mNotifyPayloads[len] = payload;
+                }
+                System.arraycopy(buf, 0, payload, 0, len);
+                // Borrowed until onReceived returns, handlers copy whatever they keep
+                cb.onReceived(timestamp, payload);
+            }
+        }
+    };
+
+    // Unacknowledged writes allowed in flight when unacked writes are enabled
+    public static final int DEFAULT_WRITE_CREDITS = 4;
+    // Guards the unacked write accounting below
+    private final Object creditLock = new Object();
+    // Size of the unacked write window.  0 means every write is acknowledged.
+    private int writeCredits = 0;
+    // Unacked writes whose onCharacteristicWrite hasn't come back yet
+    private int unackedInFlight = 0;
+    private boolean unackedFailed = false;
+
     public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
     private class Interruptable implements Callable<Void> {
@@ -82,23 +165,36 @@ public class PeripheralWrapper {
             return null;
         }
     }
+    // Doesn't wait on a completion, so it's allowed to overlap other unacked writes
+    private class UnackedWrite extends Interruptable {}
 
     // Anything that has to do with the BluetoothGatt needs to go through here
     private int protectedCall(final Interruptable r,boolean force_main_thread) {
-        if(Util.onCBThread()) {
+        if(onCallbackThread()) {
             Log.e(TAG,"DON'T DO BLE STUFF FROM THE CB THREAD!");
             new Exception().printStackTrace();
         }
         Runnable payload = new Runnable() {
             @Override
             public void run() {
+                boolean have_slot = false;
                 try {
                     if(bleLock.isLocked() && !bleLock.isHeldByCurrentThread()) {
                         Log.d(TAG,"WAITING ON bleLock");
                     }
                     bleLock.lock();
-                    if(conditionLock.isLocked() && !conditionLock.isHeldByCurrentThread()) {
-                        Log.d(TAG,"WAITING ON conditionLock");
+                    // Nested calls on this peripheral already hold a slot
+                    if(bleLock.getHoldCount()==1) {
+                        if(gattSlots.availablePermits()==0) {
+                            Log.d(TAG,"WAITING ON gattSlots");
+                        }
+                        gattSlots.acquire();
+                        have_slot = true;
+                    }
+                    if(!(r instanceof UnackedWrite)) {
+                        // Let unacked writes finish first, otherwise their completions would
+                        // be mistaken for this call's
+                        awaitUnackedWrites();
                     }
                     conditionLock.lock();
                     Log.d(TAG, "MAKING PROTECTED CALL");
@@ -111,6 +207,9 @@ public class PeripheralWrapper {
                         conditionLock.unlock();
                         released = true;
                     }
+                    if(have_slot) {
+                        gattSlots.release();
+                    }
                     if(bleLock.isHeldByCurrentThread()) {
                         bleLock.unlock();
                         released = true;
@@ -132,6 +231,17 @@ public class PeripheralWrapper {
     private int protectedCall(final Interruptable r) {
         return protectedCall(r,false);
     }
+
+    // Waits on cond for as long as tracker thinks is reasonable and feeds the outcome back in.
+    // Returns true on timeout, like awaitMilli.
+    private static boolean timedAwait(StatLockManager cond, LatencyTracker tracker, long start_ns) {
+        if(cond.awaitMilli(tracker.getTimeoutMs())) {
+            tracker.recordTimeout();
+            return true;
+        }
+        tracker.recordSince(start_ns);
+        return false;
+    }
     
     public PeripheralWrapper(final BluetoothDevice device, final Context context) {
         mContext = context;
@@ -152,7 +262,6 @@ public class PeripheralWrapper {
         bleDiscoverCondition = new StatLockManager(conditionLock,"DISCO");
         bleReadCondition     = new StatLockManager(conditionLock,"READ ");
         bleWriteCondition    = new StatLockManager(conditionLock,"WRITE");
-        bleChangedCondition  = new StatLockManager(conditionLock,"CHANG");
         bleDReadCondition    = new StatLockManager(conditionLock,"DREAD");
         bleDWriteCondition   = new StatLockManager(conditionLock,"DWRIT");
         bleRWriteCondition   = new StatLockManager(conditionLock,"RWRIT");
@@ -161,62 +270,71 @@ public class PeripheralWrapper {
         mGattCallbacks = new BluetoothGattCallback() {
             @Override public void onServicesDiscovered(BluetoothGatt g, int stat)                                 { Log.d(TAG,"GATTCB:DISCOVER");bleDiscoverCondition.l(stat);               bleDiscoverCondition.sig(); bleDiscoverCondition.ul();}
             @Override public void onCharacteristicRead(BluetoothGatt g, BluetoothGattCharacteristic c, int stat)  { Log.d(TAG,"GATTCB:READ");    bleReadCondition    .l(stat);               bleReadCondition    .sig(); bleReadCondition    .ul();}
-            @Override public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int stat) { Log.d(TAG,"GATTCB:WRITE");   bleWriteCondition   .l(stat);               bleWriteCondition   .sig(); bleWriteCondition   .ul();}
+            @Override public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int stat) { Log.d(TAG,"GATTCB:WRITE");
+                if(onUnackedWriteComplete(stat)) {
+                    return;
+                }
+                bleWriteCondition   .l(stat);               bleWriteCondition   .sig(); bleWriteCondition   .ul();
+            }
             @Override public void onDescriptorRead(BluetoothGatt g, BluetoothGattDescriptor d, int stat)          { Log.d(TAG,"GATTCB:DREAD");   bleDReadCondition   .l(stat);               bleDReadCondition   .sig(); bleDReadCondition   .ul();}
             @Override public void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int stat)         { Log.d(TAG,"GATTCB:DWRITE");  bleDWriteCondition  .l(stat);               bleDWriteCondition  .sig(); bleDWriteCondition  .ul();}
             @Override public void onReliableWriteCompleted(BluetoothGatt g, int stat)                             { Log.d(TAG,"GATTCB:RWRITE");  bleRWriteCondition  .l(stat);               bleRWriteCondition  .sig(); bleRWriteCondition  .ul();}
             @Override public void onReadRemoteRssi(BluetoothGatt g, int rssi, int stat)                           { Log.d(TAG,"GATTCB:RSSI");    bleRSSICondition    .l(stat); mRssi = rssi; bleRSSICondition    .sig(); bleRSSICondition    .ul();}
             @Override public void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c)         { Log.d(TAG,"GATTCB:CCHANGE");
-                bleChangedCondition .l(0);
                 final byte[] val = c.getValue();
                 // The BLE stack sometimes gives us a null here, unclear why.
-                if( val != null ) {
-                    final NotifyHandler cb = mNotifyCB.get(c.getUuid());
-                    if (cb != null) {
-                        final byte[] payload = val.clone();
-                        final double timestamp = Util.getNanoTime();
-                        Util.dispatchCb(new Runnable() {
-                            @Override
-                            public void run() {
-                                cb.onReceived(timestamp, payload);
-                            }
-                        });
+                if( val != null && mNotifyCB.containsKey(c.getUuid()) ) {
+                    if(mNotifyRing.offer(c.getUuid(), Util.getNanoTime(), val) && !mNotifyDrainPending.getAndSet(true)) {
+                        dispatchCb(mNotifyDrain);
                     }
                 }
-                bleChangedCondition .ul();
             }
             @Override
             public void onConnectionStateChange(BluetoothGatt g, int stat, int newState) {
                 Log.d(TAG, "GATTCB:CONN");
                 bleStateCondition   .l(stat);
-                mConnectionState = newState;
-                switch(newState) {
-                    case BluetoothProfile.STATE_DISCONNECTED:
-                        Log.d(TAG,"New state: Disconnected");
-                        mBluetoothGatt.close();
-                        break;
-                    case BluetoothProfile.STATE_CONNECTING:
-                        Log.d(TAG,"New state: Connecting");
-                        break;
-                    case BluetoothProfile.STATE_CONNECTED:
-                        Log.d(TAG,"New state: Connected");
-                        break;
-                    case BluetoothProfile.STATE_DISCONNECTING:
-                        Log.d(TAG,"New state: Disconnecting");
-                        break;
-                }
-                synchronized (mConnectionStateCB) {
-                    List<Runnable> cbs = mConnectionStateCB.get(mConnectionState);
-                    for(Runnable cb : cbs) {
-                        Util.dispatchCb(cb);
-                    }
+                if(newState==BluetoothProfile.STATE_DISCONNECTED) {
+                    mBluetoothGatt.close();
                 }
+                setConnectionState(newState);
                 bleStateCondition   .sig();
                 bleStateCondition   .ul();
             }
         };
     }
 
+    // Records the new state and runs the callbacks registered for it
+    protected void setConnectionState(int newState) {
+        mConnectionState = newState;
+        if(newState==BluetoothProfile.STATE_DISCONNECTED) {
+            // Completions for anything still in flight are never coming
+            synchronized (creditLock) {
+                unackedInFlight = 0;
+                creditLock.notifyAll();
+            }
+        }
+        switch(newState) {
+            case BluetoothProfile.STATE_DISCONNECTED:
+                Log.d(TAG,"New state: Disconnected");
+                break;
+            case BluetoothProfile.STATE_CONNECTING:
+                Log.d(TAG,"New state: Connecting");
+                break;
+            case BluetoothProfile.STATE_CONNECTED:
+                Log.d(TAG,"New state: Connected");
+                break;
+            case BluetoothProfile.STATE_DISCONNECTING:
+                Log.d(TAG,"New state: Disconnecting");
+                break;
+        }
+        synchronized (mConnectionStateCB) {
+            List<Runnable> cbs = mConnectionStateCB.get(mConnectionState);
+            for(Runnable cb : cbs) {
+                dispatchCb(cb);
+            }
+        }
+    }
+
     public int addConnectionStateCB(int state,Runnable cb) {
         synchronized (mConnectionStateCB) {
             connectionStateCBHandle++;
@@ -244,6 +362,7 @@ public class PeripheralWrapper {
         }
     }
 
+    @Override
     public boolean isConnected() {
         return (mConnectionState == BluetoothProfile.STATE_CONNECTED);
     }
@@ -276,7 +395,11 @@ public class PeripheralWrapper {
                 // Try to connect
                 Log.d(TAG,"CONNECTGATT");
                 mBluetoothGatt = mDevice.connectGatt(mContext.getApplicationContext(),false,mGattCallbacks);
-                refreshDeviceCache();
+                // Android's cached layout is only stale if the firmware changed since we last looked
+                mLayoutTrusted = GattLayoutCache.has(getAddress(), mBuildTime);
+                if(!mLayoutTrusted) {
+                    refreshDeviceCache();
+                }
                 while (!isConnected()) {
                     //If we time out in connection or the connect routine returns an error
                     if (bleStateCondition.awaitMilli(10000) ) {
@@ -299,11 +422,66 @@ public class PeripheralWrapper {
         });
     }
 
+    /**
+     * Build time from the meter's advertisement, so we know whether the GATT layout we saw
+     * last time can still be trusted.  0 if unknown.
+     */
+    public void setBuildTime(int build_time) {
+        mBuildTime = build_time;
+    }
+
+    /**
+     * Run this peripheral's callbacks on lane instead of the shared cb_thread, so a slow or
+     * blocked handler on one meter doesn't hold up the others.  null goes back to the cb_thread.
+     * Set it while disconnected, callbacks already queued stay where they are.
+     */
+    public void setCallbackLane(Dispatcher lane) {
+        mCbLane = lane;
+    }
+
+    private void dispatchCb(Runnable r) {
+        Dispatcher lane = mCbLane;
+        if(lane!=null) {
+            lane.dispatch(r);
+        } else {
+            Util.dispatchCb(r);
+        }
+    }
+
+    public boolean onCallbackThread() {
+        Dispatcher lane = mCbLane;
+        return Util.onCBThread() || (lane!=null && lane.isCallingThread());
+    }
+
     public int discover() {
         if(!isConnected()) {
             new Exception().printStackTrace();
             return -1;
         }
+        long start_ns = System.nanoTime();
+        int stat = discoverServices();
+        if(mLayoutTrusted) {
+            if(stat==0 && GattLayoutCache.matches(getAddress(), mBuildTime, mBluetoothGatt.getServices())) {
+                Log.d(TAG, "Discovered from cached layout in " + (System.nanoTime()-start_ns)/1000000 + "ms");
+                return 0;
+            }
+            // Something changed under the same build time.  Dump Android's copy and go over the air.
+            Log.e(TAG, "Cached GATT layout didn't check out, rediscovering");
+            GattLayoutCache.forget(getAddress());
+            mLayoutTrusted = false;
+            refreshDeviceCache();
+            mServices.clear();
+            mCharacteristics.clear();
+            stat = discoverServices();
+        }
+        if(stat==0) {
+            GattLayoutCache.store(getAddress(), mBuildTime, mBluetoothGatt.getServices());
+            Log.d(TAG, "Full discovery took " + (System.nanoTime()-start_ns)/1000000 + "ms");
+        }
+        return stat;
+    }
+
+    private int discoverServices() {
         protectedCall(new Interruptable() {
             @Override
             public Void call() throws InterruptedException {
@@ -379,8 +557,9 @@ public class PeripheralWrapper {
             public Void call() throws InterruptedException {
                 if (isConnected()) {
                     Log.d(TAG, "READRSSI");
+                    long start_ns = System.nanoTime();
                     mBluetoothGatt.readRemoteRssi();
-                    if(bleRSSICondition.awaitMilli(500)) {
+                    if(timedAwait(bleRSSICondition, rssiLatency, start_ns)) {
                         Log.e(TAG, "RSSI read timed out!");
                     }
                 }
@@ -390,6 +569,7 @@ public class PeripheralWrapper {
         return mRssi;
     }
 
+    @Override
     public byte[] req(UUID uuid) {
         if(!isConnected()) {
             Log.e(TAG,"Trying to read from a disconnected peripheral");
@@ -405,8 +585,9 @@ public class PeripheralWrapper {
             @Override
             public Void call() throws InterruptedException {
                 Log.d(TAG,"READ");
+                long start_ns = System.nanoTime();
                 mBluetoothGatt.readCharacteristic(c);
-                if(bleReadCondition.awaitMilli(1000)) {
+                if(timedAwait(bleReadCondition, readLatency, start_ns)) {
                     mRval = -1;
                 } else {
                     mRval = bleReadCondition.stat;
@@ -417,6 +598,7 @@ public class PeripheralWrapper {
         return c.getValue();
     }
 
+    @Override
     public int send(final UUID uuid, final byte[] value) {
         if(!isConnected()) {
             Log.e(TAG,"Trying to send to a disconnected peripheral");
@@ -428,13 +610,22 @@ public class PeripheralWrapper {
             Log.e(TAG, "Couldn't find write characteristic for "+uuid.toString());
             return -1;
         }
+        if(useUnackedWrites(c)) {
+            if(0==sendUnacked(c, value)) {
+                return 0;
+            }
+            Log.e(TAG, "Unacknowledged write failed, falling back to acknowledged writes");
+            setWriteCredits(0);
+        }
         return protectedCall(new Interruptable() {
             @Override
             public Void call() throws InterruptedException {
                 Log.d(TAG, "WRITE");
+                c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
                 c.setValue(value);
+                long start_ns = System.nanoTime();
                 mBluetoothGatt.writeCharacteristic(c);
-                if (bleWriteCondition.awaitMilli(1000)) {
+                if (timedAwait(bleWriteCondition, writeLatency, start_ns)) {
                     mRval = -1;
                 } else {
                     mRval = bleWriteCondition.stat;
@@ -444,10 +635,157 @@ public class PeripheralWrapper {
         });
     }
 
+    //////////////////////
+    // Unacknowledged writes
+    //////////////////////
+
+    /**
+     * Let send() use write-without-response on characteristics that support it, with up to
+     * n writes in flight before it blocks waiting for the stack to drain them.  Nothing is
+     * retried at this level; the protocol above has to tolerate a lost write (ConfigTree does,
+     * through its sequence numbers and request timeouts).  Any error drops back to
+     * acknowledged writes until this is called again.
+     * @param n the credit window, 0 to acknowledge every write
+     */
+    public void setWriteCredits(int n) {
+        synchronized (creditLock) {
+            writeCredits = n;
+            unackedFailed = false;
+            creditLock.notifyAll();
+        }
+    }
+
+    public int getWriteCredits() {
+        synchronized (creditLock) {
+            return writeCredits;
+        }
+    }
+
+    private boolean useUnackedWrites(BluetoothGattCharacteristic c) {
+        if((c.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)==0) {
+            return false;
+        }
+        synchronized (creditLock) {
+            return writeCredits>0 && !unackedFailed;
+        }
+    }
+
+    // Blocks until there's room in the window.  Call with creditLock held.
+    private boolean awaitCredit() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + writeLatency.getTimeoutMs();
+        while(!unackedFailed && writeCredits>0 && unackedInFlight>=writeCredits) {
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining<=0) {
+                Log.e(TAG, "Timed out waiting for a write credit");
+                return false;
+            }
+            creditLock.wait(remaining);
+        }
+        return !unackedFailed && writeCredits>0;
+    }
+
+    private int sendUnacked(final BluetoothGattCharacteristic c, final byte[] value) {
+        try {
+            for(int attempt = 0; attempt < 3; attempt++) {
+                synchronized (creditLock) {
+                    if(!awaitCredit()) {
+                        return -1;
+                    }
+                    // Count it before the write starts, the completion can beat writeCharacteristic back
+                    unackedInFlight++;
+                }
+                int rval = protectedCall(new UnackedWrite() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        Log.d(TAG, "WRITE_NR");
+                        c.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                        c.setValue(value);
+                        mRval = mBluetoothGatt.writeCharacteristic(c) ? 0 : -1;
+                        return null;
+                    }
+                });
+                if(rval==0) {
+                    return 0;
+                }
+                // The stack is still busy with an earlier write.  Give the credit back and
+                // try again once something completes.
+                synchronized (creditLock) {
+                    unackedInFlight--;
+                    if(unackedInFlight>0) {
+                        creditLock.wait(writeLatency.getTimeoutMs());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    // Returns true if the completion belonged to an unacked write
+    private boolean onUnackedWriteComplete(int stat) {
+        synchronized (creditLock) {
+            if(unackedInFlight==0) {
+                return false;
+            }
+            unackedInFlight--;
+            if(stat!=BluetoothGatt.GATT_SUCCESS) {
+                Log.e(TAG, "Unacknowledged write failed with status " + stat);
+                unackedFailed = true;
+            }
+            creditLock.notifyAll();
+            return true;
+        }
+    }
+
+    private void awaitUnackedWrites() {
+        synchronized (creditLock) {
+            long deadline = System.currentTimeMillis() + writeLatency.getTimeoutMs();
+            try {
+                while(unackedInFlight>0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if(remaining<=0) {
+                        Log.e(TAG, "Unacknowledged writes never completed");
+                        unackedInFlight = 0;
+                        unackedFailed = true;
+                        break;
+                    }
+                    creditLock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Latency stats
+
+    public LatencyTracker getReadLatency()            { return readLatency; }
+    public LatencyTracker getWriteLatency()           { return writeLatency; }
+    public LatencyTracker getDescriptorWriteLatency() { return dwriteLatency; }
+    public LatencyTracker getRssiLatency()            { return rssiLatency; }
+
+    // Notification ring stats
+
+    public int getNotifyRingOccupancy() {
+        return mNotifyRing.size();
+    }
+    public int getNotifyRingHighWater() {
+        return mNotifyRing.getHighWater();
+    }
+    public int getNotifyRingCapacity() {
+        return mNotifyRing.capacity();
+    }
+    // Notifications dropped because the cb thread fell a full ring behind, or didn't fit a slot
+    public long getNotifyOverruns() {
+        return mNotifyRing.getOverruns() + mNotifyRing.getOversized();
+    }
+
     public NotifyHandler getNotificationCallback(UUID uuid) {
         return mNotifyCB.get(uuid);
     }
 
+    @Override
     public boolean isNotificationEnabled(UUID uuid) {
         if(!isConnected()) {
             Log.e(TAG,"Trying to read notification on a disconnected peripheral");
@@ -464,7 +802,8 @@ public class PeripheralWrapper {
         return (dval == BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
     }
 
-    private Map<UUID,Boolean> notification_disable_preempted = new ConcurrentHashMap<UUID, Boolean>();
+    // Notification disables waiting out their delay, cancelled if the notification is re-enabled first
+    private Map<UUID,TimerWheel.Timeout> pending_notify_disable = new ConcurrentHashMap<UUID, TimerWheel.Timeout>();
 
     private int enableNotifyDirect(final UUID uuid, final boolean enable) {
         final BluetoothGattCharacteristic c = getChar(uuid);
@@ -479,8 +818,9 @@ public class PeripheralWrapper {
                         Log.e(TAG, "setValue Fail!");
                     }
                     Log.d(TAG, "DWRITE");
+                    long start_ns = System.nanoTime();
                     mBluetoothGatt.writeDescriptor(clientConfig);
-                    if(bleDWriteCondition.awaitMilli(3000)) {
+                    if(timedAwait(bleDWriteCondition, dwriteLatency, start_ns)) {
                         Log.e(TAG, "writeDescriptor timed out!");
                         mRval = -1;
                     } else {
@@ -497,6 +837,7 @@ public class PeripheralWrapper {
         });
     }
 
+    @Override
     public int enableNotify(final UUID uuid, final boolean enable, final NotifyHandler on_notify) {
         if(!isConnected()) {
             Log.e(TAG,"Trying to set notification on a disconnected peripheral");
@@ -510,7 +851,10 @@ public class PeripheralWrapper {
             mNotifyCB.remove(uuid);
         }
         if(enable) {
-            notification_disable_preempted.put(uuid,Boolean.TRUE);
+            TimerWheel.Timeout pending = pending_notify_disable.remove(uuid);
+            if(pending!=null) {
+                pending.cancel();
+            }
         }
         if(isNotificationEnabled(uuid) != enable) {
             if(enable) {
@@ -518,17 +862,20 @@ public class PeripheralWrapper {
                 enableNotifyDirect(uuid,true);
             } else {
                 // Disable only after a delay
-                notification_disable_preempted.put(uuid,Boolean.FALSE);
-                Util.postDelayed(new Runnable() {
+                TimerWheel.Timeout pending = Util.schedule(new Runnable() {
                     @Override
                     public void run() {
-                        if(notification_disable_preempted.get(uuid).equals(Boolean.TRUE)) {
+                        if(pending_notify_disable.remove(uuid)==null) {
                             // If the disable was preempted, don't disable
                             return;
                         }
                         enableNotifyDirect(uuid, false);
                     }
                 }, 3000);
+                pending = pending_notify_disable.put(uuid, pending);
+                if(pending!=null) {
+                    pending.cancel();
+                }
             }
         }
         return 0;
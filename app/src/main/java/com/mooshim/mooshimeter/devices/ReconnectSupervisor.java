@@ -0,0 +1,179 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.util.Log;
+
+import com.mooshim.mooshimeter.common.Dispatcher;
+import com.mooshim.mooshimeter.common.LatencyTracker;
+import com.mooshim.mooshimeter.common.TimerWheel;
+import com.mooshim.mooshimeter.common.Util;
+
+/**
+ * Brings a dropped connection back without the user's help.  Once told the link is gone it
+ * retries connect and discover with exponential backoff, then hands the fresh link to the Session
+ * to put the meter back the way it was.  If the meter hasn't come back within GIVE_UP_MS it stops
+ * and reports the disconnect.
+ *
+ * Attempts block on the meter, so they run on the device's own lane.  The timer wheel only
+ * hands them over, never on its pool where they'd hold up other meters' timers (and the timeouts
+ * they are waiting on).  Never on the main thread either.
+ */
+public class ReconnectSupervisor {
+    private static final String TAG = "ReconnectSupervisor";
+
+    public static final int FIRST_RETRY_MS = 250;
+    public static final int MAX_RETRY_MS   = 8000;
+    public static final int GIVE_UP_MS     = 30000;
+
+    /**
+     * What the supervisor needs from the device it's looking after
+     */
+    public static abstract class Session {
+        // The link just dropped.  Capture whatever restore() will need, it's still intact.
+        public abstract void onLinkLost();
+        // The peripheral is connected and discovered again.  Return 0 once the session is restored.
+        public abstract int restore();
+        // Restore succeeded, restart anything that stopped with the link
+        public abstract void onReconnected();
+        // Out of time, report the disconnect
+        public abstract void onGaveUp();
+    }
+
+    private final PeripheralWrapper mPwrap;
+    private final Dispatcher lane;
+    private final Session session;
+    // Time from the link dropping to the session being restored, one sample per reconnect
+    private final LatencyTracker latency = new LatencyTracker("reconnect", GIVE_UP_MS, 0, GIVE_UP_MS);
+
+    private boolean active = false;
+    private TimerWheel.Timeout pending = null;
+    private long lost_ns;
+    private int retry_ms;
+    private int attempts;
+    private int n_reconnects = 0;
+    private int n_given_up   = 0;
+
+    public ReconnectSupervisor(PeripheralWrapper wrap, Dispatcher lane_arg, Session session_arg) {
+        mPwrap  = wrap;
+        lane    = lane_arg;
+        session = session_arg;
+    }
+
+    /**
+     * Start reconnecting.  Ignored if we already are.
+     */
+    public void onLinkLost() {
+        synchronized (this) {
+            if(active) {
+                return;
+            }
+            active   = true;
+            lost_ns  = System.nanoTime();
+            retry_ms = FIRST_RETRY_MS;
+            attempts = 0;
+        }
+        Log.i(TAG, "Link to " + mPwrap.getAddress() + " lost, reconnecting");
+        session.onLinkLost();
+        synchronized (this) {
+            pending = Util.schedule(queue_attempt, 0);
+        }
+    }
+
+    /**
+     * Stop reconnecting.  An attempt already underway disconnects again when it finishes.
+     * @return true if we were reconnecting
+     */
+    public synchronized boolean cancel() {
+        if(pending!=null) {
+            pending.cancel();
+            pending = null;
+        }
+        boolean was_active = active;
+        active = false;
+        return was_active;
+    }
+
+    public synchronized boolean isReconnecting() {
+        return active;
+    }
+    public LatencyTracker getLatency() {
+        return latency;
+    }
+    public synchronized int getReconnectCount() {
+        return n_reconnects;
+    }
+    public synchronized int getGiveUpCount() {
+        return n_given_up;
+    }
+
+    private final Runnable queue_attempt = new Runnable() {
+        @Override
+        public void run() {
+            lane.dispatch(attempt);
+        }
+    };
+
+    private final Runnable attempt = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ReconnectSupervisor.this) {
+                if(!active) {
+                    return;
+                }
+                pending = null;
+                attempts++;
+            }
+            Log.d(TAG, "Reconnect attempt " + attempts);
+            int rval = mPwrap.connect();
+            if(rval==0) {
+                rval = mPwrap.discover();
+            }
+            if(rval==0) {
+                try {
+                    rval = session.restore();
+                } catch (Exception e) {
+                    Log.e(TAG, "Exception restoring session");
+                    e.printStackTrace();
+                    rval = -1;
+                }
+            }
+            if(rval!=0 && !mPwrap.isDisconnected()) {
+                // A half set up link won't help the next attempt
+                mPwrap.disconnect();
+            }
+            boolean cancelled;
+            boolean give_up = false;
+            double took_ms = 0;
+            synchronized (ReconnectSupervisor.this) {
+                cancelled = !active;
+                if(!cancelled) {
+                    if(rval==0) {
+                        active = false;
+                        n_reconnects++;
+                        took_ms = (System.nanoTime()-lost_ns)/1e6;
+                        latency.record(took_ms);
+                    } else if((System.nanoTime()-lost_ns)/1000000 + retry_ms > GIVE_UP_MS) {
+                        active = false;
+                        n_given_up++;
+                        give_up = true;
+                    } else {
+                        pending = Util.schedule(queue_attempt, retry_ms);
+                        retry_ms = Math.min(2*retry_ms, MAX_RETRY_MS);
+                    }
+                }
+            }
+            if(cancelled) {
+                if(rval==0) {
+                    mPwrap.disconnect();
+                }
+                return;
+            }
+            if(rval==0) {
+                Log.i(TAG, String.format("Reconnected to %s in %.0fms, %d attempts", mPwrap.getAddress(), took_ms, attempts));
+                session.onReconnected();
+            } else if(give_up) {
+                Log.e(TAG, "Giving up reconnecting to " + mPwrap.getAddress() + " after " + attempts + " attempts");
+                session.onGaveUp();
+            }
+        }
+    };
+}
@@ -0,0 +1,430 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.util.Log;
+
+import com.mooshim.mooshimeter.common.CircularByteBuffer;
+import com.mooshim.mooshimeter.interfaces.MooshimeterControlInterface.Channel;
+import com.mooshim.mooshimeter.interfaces.NotifyHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pure Java stand-in for the Mooshimeter firmware's side of the ConfigTree serial protocol.
+ * It serves a compressed tree, answers reads and writes by shortcode, and while SAMPLING:TRIGGER
+ * is on it streams CH1/CH2 values (or BUF payloads in buffer mode) and REAL_PWR at the selected
+ * sample rate and buffer depth.  Outgoing packets can be randomly dropped to exercise loss handling.
+ *
+ * Values are kept in a ConfigTree of our own built from the same blob, so the simulated firmware
+ * always agrees with the app about node types and shortcodes.
+ * Serout packets are delivered on a dedicated "sim_radio" thread, standing in for the BLE stack.
+ */
+public class SimulatedMeter {
+    private static final String TAG = "SimulatedMeter";
+    // Bytes available in one serout notification after the sequence number
+    private static final int MAX_PAYLOAD = 19;
+
+    private static class Signal {
+        float dc = 0;
+        float amplitude = 0;
+        float freq_hz = 60;
+        float noise = 0;
+    }
+
+    private final byte[] tree_blob;
+    private final ConfigTree state = new ConfigTree();
+    private ConfigTree.ConfigNode[] by_code;
+
+    private final CircularByteBuffer serin_buf = new CircularByteBuffer();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private int serout_seq_n = 0;
+    private volatile NotifyHandler serout_handler = null;
+
+    private final Signal[] signals = {new Signal(), new Signal()};
+    private final Random random = new Random(0);
+    private volatile double loss_rate = 0;
+    private volatile double speed = 1;
+    private long sample_n = 0;
+
+    private final ScheduledThreadPoolExecutor radio;
+    private ScheduledFuture<?> stream_future = null;
+
+    private int packets_sent = 0;
+    private int packets_dropped = 0;
+    private int frames_streamed = 0;
+    private int records_received = 0;
+
+    public SimulatedMeter(byte[] tree_blob_arg) {
+        tree_blob = tree_blob_arg;
+        if(state.loadTree(tree_blob)==0) {
+            throw new IllegalArgumentException("Couldn't unpack the tree blob");
+        }
+        List<ConfigTree.ConfigNode> coded = new ArrayList<>(state.getShortCodeMap().values());
+        by_code = new ConfigTree.ConfigNode[coded.size()];
+        for(ConfigTree.ConfigNode n:coded) {
+            by_code[n.code] = n;
+        }
+        radio = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "sim_radio");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // Power on defaults
+        setDefault("PCB_VERSION", 8);
+        setDefault("BAT_V", 3.0f);
+        setDefault("NAME", "Simulated Mooshimeter");
+        setDefault("CH1:BUF_BPS", 24);
+        setDefault("CH2:BUF_BPS", 24);
+        setDefault("CH1:BUF_LSB2NATIVE", 1e-6f);
+        setDefault("CH2:BUF_LSB2NATIVE", 1e-5f);
+        setDefault("SAMPLING:RATE", 0);
+        setDefault("SAMPLING:DEPTH", 1);
+        signals[1].amplitude = 170;
+    }
+    private void setDefault(String path, Object v) {
+        ConfigTree.ConfigNode n = state.getNode(path);
+        if(n!=null) {
+            n.setValue(v);
+        }
+    }
+
+    //////////////////
+    // Knobs for tests
+    //////////////////
+
+    /**
+     * What the simulated inputs see: dc + amplitude*sin(2*pi*freq_hz*t) + uniform noise
+     */
+    public void setSignal(Channel c, float dc, float amplitude, float freq_hz, float noise) {
+        Signal s = signals[c.ordinal()];
+        synchronized (this) {
+            s.dc = dc;
+            s.amplitude = amplitude;
+            s.freq_hz = freq_hz;
+            s.noise = noise;
+        }
+    }
+    // Fraction (0 to 1) of serout packets to silently drop
+    public void setLossRate(double rate) {
+        loss_rate = rate;
+    }
+    // Run the sampling clock this many times faster than real time
+    public void setSpeed(double speed_arg) {
+        speed = speed_arg;
+        synchronized (this) {
+            restartStreaming();
+        }
+    }
+    // Select a sample rate and buffer depth by choice index, as if the app had written them
+    public synchronized void setSampling(int rate_i, int depth_i) {
+        state.getNode("SAMPLING:RATE").setValue(rate_i);
+        state.getNode("SAMPLING:DEPTH").setValue(depth_i);
+        restartStreaming();
+    }
+    public synchronized int getPacketsSent() {
+        return packets_sent;
+    }
+    public synchronized int getPacketsDropped() {
+        return packets_dropped;
+    }
+    public synchronized int getFramesStreamed() {
+        return frames_streamed;
+    }
+    public synchronized int getRecordsReceived() {
+        return records_received;
+    }
+    public ConfigTree getState() {
+        return state;
+    }
+
+    //////////////////
+    // Link
+    //////////////////
+
+    // Where serout notifications go.  null drops them, as if notifications were disabled.
+    public void setSeroutHandler(NotifyHandler h) {
+        serout_handler = h;
+    }
+
+    /**
+     * Handle one serin write from the app: [seq][records...]
+     */
+    public synchronized void receive(byte[] packet) {
+        if(packet.length<2) {
+            return;
+        }
+        serin_buf.put(packet, 1, packet.length-1);
+        while(serin_buf.remaining()>0) {
+            serin_buf.mark();
+            try {
+                if(!interpretRecord()) {
+                    serin_buf.clear();
+                    break;
+                }
+                records_received++;
+            } catch (BufferUnderflowException e) {
+                serin_buf.reset();
+                break;
+            }
+        }
+        flushOut();
+    }
+
+    public synchronized void shutdown() {
+        stopStreaming();
+        radio.shutdownNow();
+    }
+
+    //////////////////
+    // Protocol
+    //////////////////
+
+    private boolean interpretRecord() {
+        int opcode = serin_buf.get()&0xFF;
+        boolean write = (opcode&0x80)!=0;
+        int code = opcode&0x7F;
+        if(code>=by_code.length) {
+            Log.e(TAG, "Unknown shortcode " + code);
+            return false;
+        }
+        ConfigTree.ConfigNode n = by_code[code];
+        if(write) {
+            switch(n.ntype) {
+                case ConfigTree.NTYPE.CHOOSER:
+                case ConfigTree.NTYPE.VAL_U8:
+                    n.setValue(serin_buf.get()&0xFF);
+                    break;
+                case ConfigTree.NTYPE.VAL_S8:
+                    n.setValue((int)serin_buf.get());
+                    break;
+                case ConfigTree.NTYPE.VAL_U16:
+                    n.setValue(serin_buf.getShort()&0xFFFF);
+                    break;
+                case ConfigTree.NTYPE.VAL_S16:
+                    n.setValue((int)serin_buf.getShort());
+                    break;
+                case ConfigTree.NTYPE.VAL_U32:
+                case ConfigTree.NTYPE.VAL_S32:
+                    n.setValue(serin_buf.getInt());
+                    break;
+                case ConfigTree.NTYPE.VAL_FLT:
+                    n.setValue(serin_buf.getFloat());
+                    break;
+                case ConfigTree.NTYPE.VAL_STR:
+                    byte[] str = new byte[serin_buf.getShort()];
+                    serin_buf.get(str);
+                    // The app null terminates strings
+                    serin_buf.get();
+                    n.setValue(new String(str));
+                    break;
+                default:
+                    Log.e(TAG, "Can't write to " + n.getLongName());
+                    return false;
+            }
+            onWritten(n);
+        }
+        emitValue(n);
+        return true;
+    }
+
+    private void onWritten(ConfigTree.ConfigNode n) {
+        String path = n.getLongName();
+        if(path.equals("SAMPLING:TRIGGER") || path.equals("SAMPLING:RATE") || path.equals("SAMPLING:DEPTH")) {
+            restartStreaming();
+        }
+    }
+
+    private void emitValue(ConfigTree.ConfigNode n) {
+        ByteBuffer b;
+        switch(n.ntype) {
+            case ConfigTree.NTYPE.CHOOSER:
+            case ConfigTree.NTYPE.VAL_U8:
+            case ConfigTree.NTYPE.VAL_S8:
+                b = record(n, 1);
+                b.put((byte)n.getIntValue());
+                break;
+            case ConfigTree.NTYPE.VAL_U16:
+            case ConfigTree.NTYPE.VAL_S16:
+                b = record(n, 2);
+                b.putShort((short)n.getIntValue());
+                break;
+            case ConfigTree.NTYPE.VAL_U32:
+            case ConfigTree.NTYPE.VAL_S32:
+                b = record(n, 4);
+                b.putInt(n.getIntValue());
+                break;
+            case ConfigTree.NTYPE.VAL_FLT:
+                b = record(n, 4);
+                b.putFloat(n.getFloatValue());
+                break;
+            case ConfigTree.NTYPE.VAL_STR:
+            case ConfigTree.NTYPE.VAL_BIN:
+                byte[] bytes;
+                if(n.getLongName().equals("ADMIN:TREE")) {
+                    bytes = tree_blob;
+                } else if(n.getValue() instanceof String) {
+                    bytes = ((String)n.getValue()).getBytes();
+                } else if(n.getValue() instanceof byte[]) {
+                    bytes = (byte[])n.getValue();
+                } else {
+                    bytes = new byte[0];
+                }
+                b = record(n, 2 + bytes.length);
+                b.putShort((short)bytes.length);
+                b.put(bytes);
+                break;
+            default:
+                return;
+        }
+        out.write(b.array(), 0, b.position());
+    }
+    private static ByteBuffer record(ConfigTree.ConfigNode n, int payload_len) {
+        ByteBuffer b = ByteBuffer.allocate(1 + payload_len);
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte)n.code);
+        return b;
+    }
+
+    // Chop everything emitted so far in to notifications and hand them to the radio
+    private void flushOut() {
+        byte[] pending = out.toByteArray();
+        out.reset();
+        for(int i = 0; i < pending.length; i += MAX_PAYLOAD) {
+            int len = Math.min(MAX_PAYLOAD, pending.length - i);
+            final byte[] packet = new byte[len + 1];
+            packet[0] = (byte)serout_seq_n;
+            serout_seq_n = (serout_seq_n+1)&0xFF;
+            System.arraycopy(pending, i, packet, 1, len);
+            if(loss_rate>0 && random.nextDouble()<loss_rate) {
+                packets_dropped++;
+                continue;
+            }
+            packets_sent++;
+            radio.execute(new Runnable() {
+                @Override
+                public void run() {
+                    NotifyHandler h = serout_handler;
+                    if(h!=null) {
+                        h.onReceived(System.currentTimeMillis()/1000.0, packet);
+                    }
+                }
+            });
+        }
+    }
+
+    //////////////////
+    // Streaming
+    //////////////////
+
+    private int chosenNumber(String path) {
+        ConfigTree.ConfigNode n = state.getNode(path);
+        return Integer.parseInt(n.children.get(n.getIntValue()).getShortName());
+    }
+    private void stopStreaming() {
+        if(stream_future!=null) {
+            stream_future.cancel(false);
+            stream_future = null;
+        }
+    }
+    private void restartStreaming() {
+        stopStreaming();
+        if(state.getNode("SAMPLING:TRIGGER").getIntValue()==0) {
+            return;
+        }
+        // One frame per buffer's worth of samples
+        long period_us = (long)(1e6 * chosenNumber("SAMPLING:DEPTH") / chosenNumber("SAMPLING:RATE") / speed);
+        stream_future = radio.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                streamFrame();
+            }
+        }, period_us, Math.max(period_us, 1), TimeUnit.MICROSECONDS);
+    }
+
+    private float sample(Signal s, double t) {
+        return (float)(s.dc + s.amplitude*Math.sin(2*Math.PI*s.freq_hz*t) + s.noise*(2*random.nextDouble()-1));
+    }
+
+    private synchronized void streamFrame() {
+        int rate = chosenNumber("SAMPLING:RATE");
+        int depth = chosenNumber("SAMPLING:DEPTH");
+        float[][] samples = new float[2][depth];
+        for(int i = 0; i < depth; i++) {
+            double t = (double)(sample_n + i) / rate;
+            for(int c = 0; c < 2; c++) {
+                samples[c][i] = sample(signals[c], t);
+            }
+        }
+        sample_n += depth;
+        double pwr = 0;
+        for(int i = 0; i < depth; i++) {
+            pwr += samples[0][i]*samples[1][i];
+        }
+        pwr /= depth;
+        for(int c = 0; c < 2; c++) {
+            String ch = c==0 ? "CH1" : "CH2";
+            ConfigTree.ConfigNode analysis = state.getNode(ch + ":ANALYSIS");
+            String mode = analysis.children.get(analysis.getIntValue()).getShortName();
+            if(mode.equals("BUFFER")) {
+                ConfigTree.ConfigNode buf = state.getNode(ch + ":BUF");
+                buf.setValue(packBuffer(samples[c], state.getNode(ch + ":BUF_LSB2NATIVE").getFloatValue()));
+                emitValue(buf);
+                continue;
+            }
+            double v = 0;
+            for(int i = 0; i < depth; i++) {
+                v += mode.equals("RMS") ? samples[c][i]*samples[c][i] : samples[c][i];
+            }
+            v /= depth;
+            if(mode.equals("RMS")) {
+                v = Math.sqrt(v);
+            }
+            ConfigTree.ConfigNode value = state.getNode(ch + ":VALUE");
+            value.setValue((float)v);
+            emitValue(value);
+        }
+        ConfigTree.ConfigNode real_pwr = state.getNode("REAL_PWR");
+        if(real_pwr!=null) {
+            real_pwr.setValue((float)pwr);
+            emitValue(real_pwr);
+        }
+        frames_streamed++;
+        if(frames_streamed%16==0) {
+            emitValue(state.getNode("BAT_V"));
+        }
+        flushOut();
+        ConfigTree.ConfigNode trigger = state.getNode("SAMPLING:TRIGGER");
+        if(trigger.getIntValue()==1) {
+            // Single shot, turn ourselves back off
+            trigger.setValue(0);
+            emitValue(trigger);
+            flushOut();
+            stopStreaming();
+        }
+    }
+
+    // 24 bit little endian samples, as MooshimeterDevice.interpretSampleBuffer expects
+    private static byte[] packBuffer(float[] samples, float lsb2native) {
+        byte[] rval = new byte[samples.length*3];
+        for(int i = 0; i < samples.length; i++) {
+            int lsb = Math.round(samples[i]/lsb2native);
+            lsb = Math.max(-0x800000, Math.min(0x7FFFFF, lsb));
+            rval[3*i]   = (byte)lsb;
+            rval[3*i+1] = (byte)(lsb>>8);
+            rval[3*i+2] = (byte)(lsb>>16);
+        }
+        return rval;
+    }
+}
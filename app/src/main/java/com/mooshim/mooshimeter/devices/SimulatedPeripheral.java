@@ -0,0 +1,104 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.util.Log;
+
+import com.mooshim.mooshimeter.interfaces.NotifyHandler;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A PeripheralWrapper with a SimulatedMeter behind it instead of a BLE radio, so
+ * MooshimeterDevice.initialize(), ConfigTree.attach() and the streaming paths can be
+ * exercised without a physical meter.
+ */
+public class SimulatedPeripheral extends PeripheralWrapper {
+    private static final String TAG = "SimulatedPeripheral";
+
+    private final SimulatedMeter meter;
+    private final Map<UUID,Boolean> notify_enabled = new ConcurrentHashMap<>();
+
+    public SimulatedPeripheral(SimulatedMeter meter_arg) {
+        super(null, null);
+        meter = meter_arg;
+    }
+
+    public SimulatedMeter getMeter() {
+        return meter;
+    }
+
+    @Override
+    public int connect() {
+        setConnectionState(BluetoothProfile.STATE_CONNECTED);
+        return 0;
+    }
+    @Override
+    public int discover() {
+        BluetoothGattService service = new BluetoothGattService(MooshimeterDevice.mUUID.METER_SERVICE, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mServices.put(MooshimeterDevice.mUUID.METER_SERVICE, service);
+        mCharacteristics.put(MooshimeterDevice.mUUID.METER_SERIN, new BluetoothGattCharacteristic(
+                MooshimeterDevice.mUUID.METER_SERIN,
+                BluetoothGattCharacteristic.PROPERTY_WRITE,
+                BluetoothGattCharacteristic.PERMISSION_WRITE));
+        mCharacteristics.put(MooshimeterDevice.mUUID.METER_SEROUT, new BluetoothGattCharacteristic(
+                MooshimeterDevice.mUUID.METER_SEROUT,
+                BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                BluetoothGattCharacteristic.PERMISSION_READ));
+        return 0;
+    }
+    @Override
+    public int disconnect() {
+        meter.setSeroutHandler(null);
+        setConnectionState(BluetoothProfile.STATE_DISCONNECTED);
+        return 0;
+    }
+    @Override
+    public int reqRSSI() {
+        mRssi = -50;
+        return 0;
+    }
+    @Override
+    public byte[] req(UUID uuid) {
+        Log.e(TAG, "Simulated meter has no readable characteristics");
+        return null;
+    }
+    @Override
+    public int send(UUID uuid, byte[] value) {
+        if(!isConnected()) {
+            Log.e(TAG,"Trying to send to a disconnected peripheral");
+            return -1;
+        }
+        if(!uuid.equals(MooshimeterDevice.mUUID.METER_SERIN)) {
+            Log.e(TAG, "Couldn't find write characteristic for "+uuid.toString());
+            return -1;
+        }
+        meter.receive(value);
+        return 0;
+    }
+    @Override
+    public boolean isNotificationEnabled(UUID uuid) {
+        Boolean rval = notify_enabled.get(uuid);
+        return rval!=null && rval;
+    }
+    @Override
+    public int enableNotify(UUID uuid, boolean enable, NotifyHandler on_notify) {
+        if(!isConnected()) {
+            Log.e(TAG,"Trying to set notification on a disconnected peripheral");
+            return -1;
+        }
+        if(!uuid.equals(MooshimeterDevice.mUUID.METER_SEROUT)) {
+            return -1;
+        }
+        notify_enabled.put(uuid, enable);
+        meter.setSeroutHandler(enable ? on_notify : null);
+        return 0;
+    }
+    @Override
+    public String getAddress() {
+        return "00:00:00:00:00:00";
+    }
+}
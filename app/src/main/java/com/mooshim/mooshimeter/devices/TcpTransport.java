@@ -0,0 +1,263 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.util.Log;
+
+import com.mooshim.mooshimeter.common.Util;
+import com.mooshim.mooshimeter.interfaces.NotifyHandler;
+import com.mooshim.mooshimeter.interfaces.Transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Transport over a TCP socket to a TCP-to-BLE gateway sitting next to a bench meter.
+ *
+ * Every message in either direction is one frame (big endian):
+ *   byte   op
+ *   long   uuid most significant bits
+ *   long   uuid least significant bits
+ *   byte   payload length
+ *   byte[] payload
+ *
+ * Requests (app to gateway) are answered with exactly one response frame, and only one request
+ * is outstanding at a time, the same as a GATT connection:
+ *   OP_WRITE   payload is the value        -> OP_STATUS, payload is one status byte (0 is success)
+ *   OP_READ    empty payload               -> OP_VALUE,  payload is the value
+ *   OP_NOTIFY_ENABLE  one byte, 1 or 0     -> OP_STATUS
+ * The gateway may send OP_NOTIFY frames at any time, payload is the notification value.
+ *
+ * connect() does network IO, so don't call it on the main thread.
+ */
+public class TcpTransport implements Transport {
+    private static final String TAG = "TcpTransport";
+
+    public static final int OP_WRITE         = 1;
+    public static final int OP_READ          = 2;
+    public static final int OP_NOTIFY_ENABLE = 3;
+    public static final int OP_STATUS        = 4;
+    public static final int OP_VALUE         = 5;
+    public static final int OP_NOTIFY        = 6;
+
+    private static final int CONNECT_TIMEOUT_MS  = 5000;
+    private static final int RESPONSE_TIMEOUT_MS = 1000;
+
+    private final String host;
+    private final int port;
+    private volatile Socket socket = null;
+    private DataOutputStream out = null;
+    private volatile boolean connected = false;
+
+    // Serializes requests, so the next response off the socket belongs to the request in flight
+    private final ReentrantLock request_lock = new ReentrantLock(true);
+    private final BlockingQueue<byte[]> responses = new ArrayBlockingQueue<>(1);
+    private final Map<UUID,NotifyHandler> notify_cb = new ConcurrentHashMap<>();
+
+    public TcpTransport(String host_arg, int port_arg) {
+        host = host_arg;
+        port = port_arg;
+    }
+
+    public int connect() {
+        if(connected) {
+            return 0;
+        }
+        final Socket s = new Socket();
+        try {
+            s.setTcpNoDelay(true);
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            synchronized (this) {
+                socket = s;
+                out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                connected = true;
+            }
+            // The reader owns its socket.  When it exits it only tears down the connection if
+            // that socket is still the current one, not one a later connect() opened.
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readLoop(s, in);
+                }
+            }, "tcp_transport");
+            reader.setDaemon(true);
+            reader.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Couldn't connect to " + host + ":" + port);
+            e.printStackTrace();
+            close(s);
+            return -1;
+        }
+        return 0;
+    }
+
+    public synchronized int disconnect() {
+        connected = false;
+        notify_cb.clear();
+        if(socket!=null) {
+            close(socket);
+        }
+        return 0;
+    }
+
+    private static void close(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void readLoop(Socket s, DataInputStream in) {
+        // Notifications that arrive back to back are handed over as one batch, which ends once
+        // everything already received from the socket has been read, or after MAX_BATCH
+        // notifications so a gateway that never lets up can't hold decoding back indefinitely
+        List<NotifyHandler> batch = new ArrayList<>();
+        int in_batch = 0;
+        try {
+            while(connected && socket==s) {
+                int op = in.readUnsignedByte();
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                byte[] payload = new byte[in.readUnsignedByte()];
+                in.readFully(payload);
+                switch(op) {
+                    case OP_NOTIFY:
+                        NotifyHandler h = notify_cb.get(uuid);
+                        if(h!=null) {
+                            if(!batch.contains(h)) {
+                                batch.add(h);
+                                h.onBatchStart();
+                            }
+                            h.onReceived(Util.getUTCTime(), payload);
+                            in_batch++;
+                        }
+                        break;
+                    case OP_STATUS:
+                    case OP_VALUE:
+                        if(!responses.offer(payload)) {
+                            Log.e(TAG, "Unsolicited response, discarding");
+                        }
+                        break;
+                    default:
+                        Log.e(TAG, "Unknown op from gateway: " + op);
+                        break;
+                }
+                if(in.available()==0 || in_batch>=TraceReplayer.MAX_BATCH) {
+                    endBatch(batch);
+                    in_batch = 0;
+                }
+            }
+        } catch (IOException e) {
+            if(connected && socket==s) {
+                Log.e(TAG, "Lost connection to gateway");
+                e.printStackTrace();
+            }
+        }
+        // Don't leave anything held back in a batch that will never end
+        endBatch(batch);
+        synchronized (this) {
+            if(socket==s) {
+                disconnect();
+            } else {
+                close(s);
+            }
+        }
+    }
+
+    private static void endBatch(List<NotifyHandler> batch) {
+        for(NotifyHandler h : batch) {
+            h.onBatchEnd();
+        }
+        batch.clear();
+    }
+
+    // Returns the response payload, or null on timeout or a dead socket
+    private byte[] request(int op, UUID uuid, byte[] payload) {
+        request_lock.lock();
+        try {
+            if(!connected) {
+                return null;
+            }
+            responses.clear();
+            out.writeByte(op);
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+            out.writeByte(payload.length);
+            out.write(payload);
+            out.flush();
+            byte[] rval = responses.poll(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if(rval==null) {
+                Log.e(TAG, "Gateway timed out on op " + op);
+            }
+            return rval;
+        } catch (IOException e) {
+            e.printStackTrace();
+            disconnect();
+            return null;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            request_lock.unlock();
+        }
+    }
+
+    private static int statusOf(byte[] response) {
+        if(response==null || response.length<1) {
+            return -1;
+        }
+        return response[0];
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+    @Override
+    public int send(UUID uuid, byte[] value) {
+        if(!connected) {
+            Log.e(TAG,"Trying to send to a disconnected gateway");
+            return -1;
+        }
+        return statusOf(request(OP_WRITE, uuid, value));
+    }
+    @Override
+    public byte[] req(UUID uuid) {
+        if(!connected) {
+            Log.e(TAG,"Trying to read from a disconnected gateway");
+            return null;
+        }
+        return request(OP_READ, uuid, new byte[0]);
+    }
+    @Override
+    public boolean isNotificationEnabled(UUID uuid) {
+        return notify_cb.containsKey(uuid);
+    }
+    @Override
+    public int enableNotify(UUID uuid, boolean enable, NotifyHandler on_notify) {
+        if(!connected) {
+            Log.e(TAG,"Trying to set notification on a disconnected gateway");
+            return -1;
+        }
+        // Register before asking, the gateway may start notifying before it answers
+        if(enable && on_notify!=null) {
+            notify_cb.put(uuid, on_notify);
+        } else {
+            notify_cb.remove(uuid);
+        }
+        return statusOf(request(OP_NOTIFY_ENABLE, uuid, new byte[]{(byte)(enable?1:0)}));
+    }
+}
@@ -0,0 +1,81 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records raw serout notifications (sequence byte and payload) with their arrival times so a
+ * session can be replayed later with TraceReplayer.
+ *
+ * File layout (big endian, as written by DataOutputStream):
+ *   int    MAGIC
+ *   long   wall clock time of the start of the trace (ms since epoch)
+ *   int    tree_len
+ *   byte[] compressed ADMIN:TREE blob of the tree that was loaded, tree_len bytes (may be empty)
+ *   then one record per notification until end of file:
+ *     int    microseconds since the previous record (since the start for the first one)
+ *     byte   packet length
+ *     byte[] packet, including the sequence number
+ */
+public class TraceRecorder {
+    private static final String TAG = "TraceRecorder";
+    static final int MAGIC = 0x4D545231; // "MTR1"
+
+    private DataOutputStream out;
+    private long last_ns;
+    private int n_records = 0;
+
+    public TraceRecorder(File f, byte[] tree_blob) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 8192));
+        out.writeInt(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        if(tree_blob==null) {
+            Log.w(TAG, "No tree to store with the trace, replay will need one supplied");
+            out.writeInt(0);
+        } else {
+            out.writeInt(tree_blob.length);
+            out.write(tree_blob);
+        }
+        last_ns = System.nanoTime();
+    }
+
+    public synchronized void record(byte[] packet) {
+        if(out==null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long dt_us = (now - last_ns)/1000;
+        last_ns = now;
+        try {
+            out.writeInt((int)Math.min(dt_us, Integer.MAX_VALUE));
+            out.writeByte(packet.length);
+            out.write(packet);
+            n_records++;
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    public synchronized int getRecordCount() {
+        return n_records;
+    }
+
+    public synchronized void close() {
+        if(out==null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+        Log.d(TAG, "Trace closed with " + n_records + " records");
+    }
+}
@@ -0,0 +1,154 @@
+package com.mooshim.mooshimeter.devices;
+
+import com.mooshim.mooshimeter.interfaces.NotifyHandler;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Plays a trace written by TraceRecorder back in to a ConfigTree, without any Bluetooth.
+ * Packets go through the same reordering, decoding and dispatch as live traffic, so handlers
+ * attached to the tree see what they would have seen during the recorded session.
+ * The whole trace is read in to memory up front so file IO doesn't count against throughput.
+ */
+public class TraceReplayer {
+    // Pass as the speed to replay as fast as the tree can decode
+    public static final double MAX_SPEED = 0;
+    // Most packets handed over in one batch, matching a full notification ring
+    public static final int MAX_BATCH = PeripheralWrapper.NOTIFY_RING_SLOTS;
+
+    public static class Stats {
+        public int  packets = 0;
+        public long bytes = 0;
+        public long elapsed_ns = 0;
+        public double packetsPerSecond() {
+            return elapsed_ns==0 ? 0 : packets*1e9/elapsed_ns;
+        }
+        public double bytesPerSecond() {
+            return elapsed_ns==0 ? 0 : bytes*1e9/elapsed_ns;
+        }
+        public String toString() {
+            return String.format("%d packets, %d bytes in %.3f ms (%.0f packets/s, %.0f bytes/s)",
+                    packets, bytes, elapsed_ns/1e6, packetsPerSecond(), bytesPerSecond());
+        }
+    }
+
+    private final long start_utc_ms;
+    private final byte[] tree_blob;
+    private final List<byte[]> packets = new ArrayList<>();
+    private final List<Integer> dt_us = new ArrayList<>();
+
+    public TraceReplayer(File f) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if(in.readInt()!=TraceRecorder.MAGIC) {
+                throw new IOException("Not a trace file: " + f);
+            }
+            start_utc_ms = in.readLong();
+            int tree_len = in.readInt();
+            if(tree_len>0) {
+                tree_blob = new byte[tree_len];
+                in.readFully(tree_blob);
+            } else {
+                tree_blob = null;
+            }
+            while(true) {
+                int dt;
+                try {
+                    dt = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] packet = new byte[in.readUnsignedByte()];
+                in.readFully(packet);
+                dt_us.add(dt);
+                packets.add(packet);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public byte[] getTreeBlob() {
+        return tree_blob;
+    }
+    public int getPacketCount() {
+        return packets.size();
+    }
+
+    /**
+     * Load the tree the trace was recorded against in to tree.
+     * @return 0 on success, -1 if the trace doesn't carry a usable tree
+     */
+    public int prepare(ConfigTree tree) {
+        if(tree_blob==null || tree.loadTree(tree_blob)==0) {
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Feed every packet in the trace to tree.
+     * @param speed 1 for real time, 100 for 100x, MAX_SPEED for as fast as possible
+     */
+    public Stats replay(ConfigTree tree, double speed) {
+        return replay(tree.getSeroutHandler(), speed);
+    }
+
+    /**
+     * Feed every packet in the trace to sink, as serout notifications.
+     * Packets that are already due when the replay catches up are delivered as one batch, the
+     * way a peripheral drains its notification ring, up to MAX_BATCH at a time.
+     * Stops early if the replaying thread is interrupted.
+     */
+    public Stats replay(NotifyHandler sink, double speed) {
+        Stats rval = new Stats();
+        long t_us = 0;
+        long start_ns = System.nanoTime();
+        int in_batch = 0;
+        for(int i = 0; i < packets.size(); i++) {
+            if(Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            byte[] packet = packets.get(i);
+            t_us += dt_us.get(i);
+            if(speed>0) {
+                long due_ns = start_ns + (long)(t_us*1000/speed);
+                long wait_ns = due_ns - System.nanoTime();
+                if(wait_ns>0) {
+                    if(in_batch>0) {
+                        sink.onBatchEnd();
+                        in_batch = 0;
+                    }
+                    try {
+                        Thread.sleep(wait_ns/1000000, (int)(wait_ns%1000000));
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                        break;
+                    }
+                }
+            }
+            if(in_batch==0) {
+                sink.onBatchStart();
+            }
+            sink.onReceived((start_utc_ms + t_us/1000)/1000.0, packet);
+            rval.packets++;
+            rval.bytes += packet.length;
+            if(++in_batch==MAX_BATCH) {
+                sink.onBatchEnd();
+                in_batch = 0;
+            }
+        }
+        if(in_batch>0) {
+            sink.onBatchEnd();
+        }
+        rval.elapsed_ns = System.nanoTime() - start_ns;
+        return rval;
+    }
+}
@@ -0,0 +1,229 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.mooshim.mooshimeter.common.Util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * On-disk cache of config trees we've seen before, keyed by the tree's CRC32.
+ * Trees are stored already flattened (preorder, with parent indices and shortcodes) so they
+ * can be memory mapped and rebuilt in a single pass, without inflating or recursing.
+ * Only the most recently used MAX_ENTRIES trees are kept.  The usage order lives in a preference,
+ * file timestamps can't be relied on to update on Android's app storage.
+ *
+ * File layout (little endian):
+ *   int   MAGIC
+ *   int   crc
+ *   int   n_nodes
+ *   n_nodes * { byte ntype, short parent_index, short code, byte name_len, byte[name_len] name }
+ */
+class TreeCache {
+    private static final String TAG = "TreeCache";
+    private static final int MAGIC = 0x4D544331; // "MTC1"
+    private static final int MAX_ENTRIES = 4;
+    private static final String PREFS = "mooshimeter-tree-cache";
+    // Space separated hex CRCs, most recently used first
+    private static final String LRU_KEY = "LRU";
+
+    private TreeCache() {}
+
+    private static File getDir() {
+        if(Util.getRootContext()==null) {
+            return null;
+        }
+        File dir = new File(Util.getRootContext().getCacheDir(), "trees");
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Couldn't create tree cache directory");
+            return null;
+        }
+        return dir;
+    }
+    private static File getFile(File dir, int crc) {
+        return new File(dir, Integer.toHexString(crc) + ".tree");
+    }
+
+    /**
+     * Rebuild a stashed tree.
+     * @return the new root node, or null if we don't have a valid snapshot for crc
+     */
+    static ConfigTree.ConfigNode load(ConfigTree tree, int crc) {
+        File dir = getDir();
+        if(dir==null) {
+            return null;
+        }
+        File f = getFile(dir, crc);
+        if(!f.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "r");
+            MappedByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            b.order(ByteOrder.LITTLE_ENDIAN);
+            if(b.getInt()!=MAGIC || b.getInt()!=crc) {
+                Log.e(TAG, "Bad tree snapshot for " + Integer.toHexString(crc));
+                f.delete();
+                return null;
+            }
+            int n_nodes = b.getInt();
+            ConfigTree.ConfigNode[] nodes = new ConfigTree.ConfigNode[n_nodes];
+            byte[] namebytes = new byte[0xFF];
+            for(int i = 0; i < n_nodes; i++) {
+                int ntype  = b.get();
+                int parent = b.getShort();
+                int code   = b.getShort();
+                int nlen   = b.get()&0xFF;
+                b.get(namebytes, 0, nlen);
+                ConfigTree.ConfigNode n = new ConfigTree.ConfigNode(tree, ntype, new String(namebytes, 0, nlen), null);
+                n.code = code;
+                if(parent>=0) {
+                    n.parent = nodes[parent];
+                    n.parent.children.add(n);
+                }
+                nodes[i] = n;
+            }
+            touch(crc);
+            return n_nodes>0 ? nodes[0] : null;
+        } catch (Exception e) {
+            // Truncated or otherwise corrupt, forget about it
+            Log.e(TAG, "Couldn't load tree snapshot: " + e.getMessage());
+            f.delete();
+            return null;
+        } finally {
+            if(raf!=null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Flatten and stash a tree under crc, evicting the least recently used snapshots
+     */
+    static void store(ConfigTree.ConfigNode root, int crc) {
+        File dir = getDir();
+        if(dir==null) {
+            return;
+        }
+        // Flatten in preorder, remembering each node's index so children can refer to it
+        List<ConfigTree.ConfigNode> order = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        Deque<ConfigTree.ConfigNode> stack = new ArrayDeque<>();
+        Deque<Integer> parent_stack = new ArrayDeque<>();
+        stack.push(root);
+        parent_stack.push(-1);
+        int n_bytes = 12;
+        while(!stack.isEmpty()) {
+            ConfigTree.ConfigNode n = stack.pop();
+            int my_index = order.size();
+            order.add(n);
+            parents.add(parent_stack.pop());
+            n_bytes += 6 + n.name.getBytes().length;
+            // Push in reverse so children come out in order
+            for(int i = n.children.size()-1; i >= 0; i--) {
+                stack.push(n.children.get(i));
+                parent_stack.push(my_index);
+            }
+        }
+        ByteBuffer b = ByteBuffer.allocate(n_bytes);
+        b.order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(MAGIC);
+        b.putInt(crc);
+        b.putInt(order.size());
+        for(int i = 0; i < order.size(); i++) {
+            ConfigTree.ConfigNode n = order.get(i);
+            byte[] name = n.name.getBytes();
+            b.put((byte)n.ntype);
+            b.putShort((short)(int)parents.get(i));
+            b.putShort((short)n.code);
+            b.put((byte)name.length);
+            b.put(name);
+        }
+        // Write to a temporary file and rename so a reader never sees a partial snapshot
+        File tmp = new File(dir, Integer.toHexString(crc) + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(b.array());
+            out.close();
+            out = null;
+            if(!tmp.renameTo(getFile(dir, crc))) {
+                Log.e(TAG, "Couldn't store tree snapshot");
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        } finally {
+            if(out!=null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        List<String> keep = touch(crc);
+        evict(dir, keep);
+    }
+
+    /**
+     * Move crc to the front of the usage order
+     * @return the CRCs we're keeping, most recently used first
+     */
+    private static synchronized List<String> touch(int crc) {
+        SharedPreferences p = Util.getSharedPreferences(PREFS);
+        List<String> lru = new ArrayList<>(Arrays.asList(p.getString(LRU_KEY, "").split(" ")));
+        lru.remove("");
+        String key = Integer.toHexString(crc);
+        lru.remove(key);
+        lru.add(0, key);
+        while(lru.size() > MAX_ENTRIES) {
+            lru.remove(lru.size()-1);
+        }
+        StringBuilder b = new StringBuilder();
+        for(String k : lru) {
+            b.append(k).append(' ');
+        }
+        SharedPreferences.Editor e = p.edit();
+        e.putString(LRU_KEY, b.toString().trim());
+        e.commit();
+        return lru;
+    }
+
+    // Delete every snapshot that isn't in keep
+    private static void evict(File dir, List<String> keep) {
+        File[] files = dir.listFiles();
+        if(files==null) {
+            return;
+        }
+        for(File f : files) {
+            String name = f.getName();
+            if(!name.endsWith(".tree")) {
+                continue;
+            }
+            if(!keep.contains(name.substring(0, name.length()-".tree".length()))) {
+                Log.d(TAG, "Evicting " + name);
+                f.delete();
+            }
+        }
+    }
+}
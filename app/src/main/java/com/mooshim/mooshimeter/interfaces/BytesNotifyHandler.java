@@ -0,0 +1,13 @@
+package com.mooshim.mooshimeter.interfaces;
+
+/**
+ * NotifyHandler specialized for binary nodes.
+ */
+public abstract class BytesNotifyHandler extends NotifyHandler {
+    public abstract void onBytes(double timestamp_utc, byte[] payload);
+    @Override
+    public void onReceived(double timestamp_utc, Object payload) {
+        // Compatibility path for callers that only know about the boxed interface
+        onBytes(timestamp_utc, (byte[]) payload);
+    }
+}
@@ -0,0 +1,14 @@
+package com.mooshim.mooshimeter.interfaces;
+
+/**
+ * NotifyHandler specialized for float valued nodes.  ConfigTree calls onFloat directly
+ * so no boxing happens on the way to the handler.
+ */
+public abstract class FloatNotifyHandler extends NotifyHandler {
+    public abstract void onFloat(double timestamp_utc, float payload);
+    @Override
+    public void onReceived(double timestamp_utc, Object payload) {
+        // Compatibility path for callers that only know about the boxed interface
+        onFloat(timestamp_utc, ((Number) payload).floatValue());
+    }
+}
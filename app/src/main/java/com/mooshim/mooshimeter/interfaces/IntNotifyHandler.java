@@ -0,0 +1,14 @@
+package com.mooshim.mooshimeter.interfaces;
+
+/**
+ * NotifyHandler specialized for integer valued nodes (choosers and the VAL_U/S types).
+ * ConfigTree calls onInt directly so no boxing happens on the way to the handler.
+ */
+public abstract class IntNotifyHandler extends NotifyHandler {
+    public abstract void onInt(double timestamp_utc, int payload);
+    @Override
+    public void onReceived(double timestamp_utc, Object payload) {
+        // Compatibility path for callers that only know about the boxed interface
+        onInt(timestamp_utc, ((Number) payload).intValue());
+    }
+}
@@ -4,5 +4,18 @@ package com.mooshim.mooshimeter.interfaces;
  * Created by First on 2/12/2016.
  */
 public abstract class NotifyHandler {
+    /**
+     * A byte[] payload is only lent to the handler.  The source may reuse it once this returns,
+     * so copy anything that needs to outlive the call.
+     */
     public abstract void onReceived(double timestamp_utc, Object payload);
+
+    /**
+     * Bracket a run of onReceived calls that were delivered together, like one drain of a
+     * peripheral's notification ring.  Handlers that would rather do their work once per batch
+     * than once per payload can override these.  Not every source batches, so a handler must
+     * still cope with onReceived calls outside of any batch.
+     */
+    public void onBatchStart() {}
+    public void onBatchEnd() {}
 }
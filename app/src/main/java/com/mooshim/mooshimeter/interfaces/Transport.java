@@ -0,0 +1,33 @@
+package com.mooshim.mooshimeter.interfaces;
+
+import java.util.UUID;
+
+/**
+ * The handful of operations the protocol layers (ConfigTree, LegacyMeterStructure) need from
+ * whatever is carrying bytes to and from the meter.  PeripheralWrapper implements it over BLE;
+ * LoopbackTransport, TcpTransport and FileReplayTransport let the same stack run without a radio.
+ * Characteristics are addressed by UUID on every transport, and return codes follow
+ * PeripheralWrapper: 0 on success, nonzero on failure.
+ */
+public interface Transport {
+    boolean isConnected();
+
+    /**
+     * Write value to the characteristic uuid.  Blocks until the write is acknowledged.
+     */
+    int send(UUID uuid, byte[] value);
+
+    /**
+     * Read the characteristic uuid.  Blocks until the value arrives.
+     * @return the value, or null on failure
+     */
+    byte[] req(UUID uuid);
+
+    boolean isNotificationEnabled(UUID uuid);
+
+    /**
+     * Enable or disable notifications on uuid.  on_notify receives a byte[] payload for each
+     * notification, on whatever thread the transport delivers from.
+     */
+    int enableNotify(UUID uuid, boolean enable, NotifyHandler on_notify);
+}
@@ -0,0 +1,86 @@
+package com.mooshim.mooshimeter.devices;
+
+import com.mooshim.mooshimeter.common.Deferred;
+import com.mooshim.mooshimeter.interfaces.NotifyHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigTreeBatchTest {
+    private SimulatedMeter meter;
+    private ConfigTree tree;
+
+    @Before
+    public void setUp() throws Exception {
+        meter = new SimulatedMeter(Fixtures.treeBlob());
+        tree = Fixtures.attachedTree(meter);
+    }
+    @After
+    public void tearDown() {
+        meter.shutdown();
+    }
+
+    @Test
+    public void writesToTheSameNodeCoalesce() {
+        int frames = tree.getFramesSent();
+        tree.beginBatch();
+        Deferred<Object> r1 = tree.getNode("SAMPLING:RATE").sendIntAsync(1);
+        Deferred<Object> r2 = tree.getNode("SAMPLING:RATE").sendIntAsync(2);
+        Deferred<Object> r3 = tree.getNode("SAMPLING:RATE").sendIntAsync(3);
+        Deferred<Object> depth = tree.getNode("SAMPLING:DEPTH").sendIntAsync(2);
+        tree.endBatch();
+        assertTrue(r3.await());
+        assertTrue(depth.await());
+        // The dropped writes still complete on the echo of the one that went out
+        assertTrue(r1.await());
+        assertTrue(r2.await());
+        assertEquals(2, tree.getWritesCoalesced());
+        assertEquals(1, tree.getFramesSent() - frames);
+        assertEquals(3, meter.getState().getNode("SAMPLING:RATE").getIntValue());
+        assertEquals(2, meter.getState().getNode("SAMPLING:DEPTH").getIntValue());
+    }
+
+    @Test
+    public void coalescedWriteKeepsItsPlaceInTheQueue() {
+        final List<String> echoes = Collections.synchronizedList(new ArrayList<String>());
+        for(final String name : new String[] {"CH1:MAPPING", "CH1:RANGE_I"}) {
+            tree.getNode(name).addNotifyHandler(new NotifyHandler() {
+                @Override
+                public void onReceived(double timestamp_utc, Object payload) {
+                    echoes.add(name);
+                }
+            });
+        }
+        tree.beginBatch();
+        Deferred<Object> m1 = tree.getNode("CH1:MAPPING").sendIntAsync(0);
+        Deferred<Object> range = tree.getNode("CH1:RANGE_I").sendIntAsync(1);
+        Deferred<Object> m2 = tree.getNode("CH1:MAPPING").sendIntAsync(1);
+        tree.endBatch();
+        assertTrue(m1.await());
+        assertTrue(m2.await());
+        assertTrue(range.await());
+        assertEquals(1, tree.getWritesCoalesced());
+        // The newer mapping went out where the old one was queued, ahead of the range
+        assertEquals(Arrays.asList("CH1:MAPPING", "CH1:RANGE_I"), echoes);
+        assertEquals(1, meter.getState().getNode("CH1:MAPPING").getIntValue());
+        assertEquals(1, meter.getState().getNode("CH1:RANGE_I").getIntValue());
+    }
+
+    @Test
+    public void openBatchIsFlushedAtTheDeadline() {
+        tree.beginBatch();
+        Deferred<Object> r = tree.getNode("SAMPLING:RATE").sendIntAsync(4);
+        assertTrue(r.await());
+        assertEquals(4, meter.getState().getNode("SAMPLING:RATE").getIntValue());
+        tree.endBatch();
+    }
+}
@@ -0,0 +1,114 @@
+package com.mooshim.mooshimeter.devices;
+
+import com.mooshim.mooshimeter.common.Deferred;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigTreeRefreshTest {
+    private SimulatedMeter meter;
+    private ConfigTree tree;
+
+    @Before
+    public void setUp() throws Exception {
+        meter = new SimulatedMeter(Fixtures.treeBlob());
+        tree = Fixtures.attachedTree(meter);
+    }
+    @After
+    public void tearDown() {
+        meter.shutdown();
+    }
+
+    @Test
+    public void freshTreeNeedsNoRefresh() {
+        int records = meter.getRecordsReceived();
+        assertTrue(tree.getStaleNodes(Long.MAX_VALUE).isEmpty());
+        assertEquals(0, tree.refreshInvalidated());
+        assertEquals(records, meter.getRecordsReceived());
+    }
+
+    @Test
+    public void invalidatedNodeIsReadAgain() {
+        ConfigTree.ConfigNode depth = tree.getNode("SAMPLING:DEPTH");
+        depth.invalidate();
+        List<ConfigTree.ConfigNode> stale = tree.getStaleNodes(Long.MAX_VALUE);
+        assertEquals(1, stale.size());
+        assertTrue(stale.contains(depth));
+        int records = meter.getRecordsReceived();
+        assertEquals(0, tree.refreshInvalidated());
+        assertEquals(1, meter.getRecordsReceived() - records);
+        assertFalse(depth.isStale(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void mappingChangeInvalidatesItsRangeAndAnalysisOnly() {
+        ConfigTree.ConfigNode mapping = tree.getNode("CH1:MAPPING");
+        int next = (mapping.getIntValue() + 1) % mapping.children.size();
+        assertTrue(mapping.sendIntAsync(next).await());
+        List<ConfigTree.ConfigNode> stale = tree.getStaleNodes(Long.MAX_VALUE);
+        assertTrue(stale.contains(tree.getNode("CH1:RANGE_I")));
+        assertTrue(stale.contains(tree.getNode("CH1:ANALYSIS")));
+        assertTrue(stale.contains(tree.getNode("CH1:BUF_LSB2NATIVE")));
+        assertFalse(stale.contains(tree.getNode("CH2:RANGE_I")));
+        assertFalse(stale.contains(tree.getNode("CH1:VALUE")));
+        assertFalse(stale.contains(tree.getNode("CH1:OFFSET")));
+        assertFalse(stale.contains(mapping));
+        int records = meter.getRecordsReceived();
+        assertEquals(0, tree.refreshInvalidated());
+        assertEquals(stale.size(), meter.getRecordsReceived() - records);
+        assertTrue(tree.getStaleNodes(Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void unrelatedChangeInvalidatesNothing() {
+        ConfigTree.ConfigNode rate = tree.getNode("SAMPLING:RATE");
+        assertTrue(rate.sendIntAsync((rate.getIntValue() + 1) % rate.children.size()).await());
+        ConfigTree.ConfigNode analysis = tree.getNode("CH1:ANALYSIS");
+        assertTrue(analysis.sendIntAsync((analysis.getIntValue() + 1) % analysis.children.size()).await());
+        assertTrue(tree.getStaleNodes(Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void settingsEchoedAfterTheMappingStayValid() {
+        ConfigTree.ConfigNode mapping  = tree.getNode("CH1:MAPPING");
+        ConfigTree.ConfigNode analysis = tree.getNode("CH1:ANALYSIS");
+        tree.beginBatch();
+        mapping.sendIntAsync((mapping.getIntValue() + 1) % mapping.children.size());
+        Deferred<Object> last = analysis.sendIntAsync((analysis.getIntValue() + 1) % analysis.children.size());
+        tree.endBatch();
+        assertTrue(last.await());
+        // The analysis was confirmed after the mapping changed, only the range and its scale
+        // are left to read back
+        List<ConfigTree.ConfigNode> stale = tree.getStaleNodes(Long.MAX_VALUE);
+        assertEquals(2, stale.size());
+        assertTrue(stale.contains(tree.getNode("CH1:RANGE_I")));
+        assertTrue(stale.contains(tree.getNode("CH1:BUF_LSB2NATIVE")));
+        int records = meter.getRecordsReceived();
+        assertEquals(0, tree.refreshInvalidated());
+        assertEquals(2, meter.getRecordsReceived() - records);
+    }
+
+    @Test
+    public void concurrentRefreshesBothComplete() throws Exception {
+        final List<ConfigTree.ConfigNode> nodes = tree.getStaleNodes(0);
+        final AtomicInteger other_timeouts = new AtomicInteger(-1);
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                other_timeouts.set(tree.refresh(nodes, ConfigTree.REFRESH_WINDOW, 1000));
+            }
+        });
+        other.start();
+        assertEquals(0, tree.refresh(nodes, ConfigTree.REFRESH_WINDOW, 1000));
+        other.join();
+        assertEquals(0, other_timeouts.get());
+    }
+}
@@ -0,0 +1,174 @@
+package com.mooshim.mooshimeter.devices;
+
+import com.mooshim.mooshimeter.common.Deferred;
+import com.mooshim.mooshimeter.interfaces.FloatNotifyHandler;
+import com.mooshim.mooshimeter.interfaces.NotifyHandler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Serout reassembly: packets from the meter are held back here and handed to the tree in
+ * whatever order (or not at all) the test picks.
+ */
+public class ConfigTreeSeroutTest {
+    private SimulatedMeter meter;
+    private LoopbackTransport lt;
+    private ConfigTree tree;
+    private final List<byte[]> held = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        meter = new SimulatedMeter(Fixtures.treeBlob());
+        lt = new LoopbackTransport(meter, Fixtures.SERIN, Fixtures.SEROUT);
+        tree = new ConfigTree();
+        assertEquals(0, tree.attach(lt, Fixtures.SERIN, Fixtures.SEROUT));
+        assertEquals(0, tree.refreshAll());
+        meter.setSeroutHandler(new NotifyHandler() {
+            @Override
+            public void onReceived(double timestamp_utc, Object payload) {
+                synchronized (held) {
+                    held.add((byte[])payload);
+                }
+            }
+        });
+    }
+    @After
+    public void tearDown() {
+        meter.shutdown();
+    }
+
+    private List<Deferred<Object>> request(String... paths) throws InterruptedException {
+        List<Deferred<Object>> rval = new ArrayList<>();
+        for(String p:paths) {
+            rval.add(tree.getNode(p).reqValueAsync());
+        }
+        // The simulator answers from its own thread
+        long deadline = System.currentTimeMillis() + 1000;
+        while(System.currentTimeMillis() < deadline) {
+            synchronized (held) {
+                if(held.size()==paths.length) {
+                    break;
+                }
+            }
+            Thread.sleep(5);
+        }
+        assertEquals(paths.length, held.size());
+        return rval;
+    }
+    private void release(int... order) {
+        for(int i:order) {
+            lt.deliver(Fixtures.SEROUT, held.get(i));
+        }
+    }
+    private static byte[] floatRecord(ConfigTree.ConfigNode n, float v) {
+        ByteBuffer b = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte)n.getShortCode());
+        b.putFloat(v);
+        return b.array();
+    }
+    private static byte[] packet(int seq_n, byte[]... records) {
+        ByteBuffer b = ByteBuffer.allocate(19 + 1);
+        b.put((byte)seq_n);
+        for(byte[] r:records) {
+            b.put(r);
+        }
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
+    @Test
+    public void reorderedPacketsAreDeliveredInOrder() throws Exception {
+        List<Deferred<Object>> d = request("SAMPLING:RATE", "SAMPLING:DEPTH", "CH1:MAPPING");
+        release(0, 2, 1);
+        for(Deferred<Object> r:d) {
+            assertTrue(r.isDone() && r.succeeded());
+        }
+        assertEquals(1, tree.getReorderedFrameCount());
+        assertEquals(0, tree.getLostFrameCount());
+    }
+
+    @Test
+    public void duplicatesAreDropped() throws Exception {
+        List<Deferred<Object>> d = request("SAMPLING:RATE", "SAMPLING:DEPTH");
+        release(0, 0, 1);
+        assertTrue(d.get(1).succeeded());
+        assertEquals(1, tree.getDuplicateFrameCount());
+    }
+
+    @Test
+    public void gapTimesOutWithoutFurtherTraffic() throws Exception {
+        tree.setReorderLimits(ConfigTree.REORDER_WINDOW_DEFAULT, 50);
+        List<Deferred<Object>> d = request("SAMPLING:RATE", "SAMPLING:DEPTH");
+        release(1);
+        assertFalse(d.get(1).isDone());
+        // Nothing else arrives.  The timer has to give up on the gap by itself.
+        Thread.sleep(300);
+        assertTrue(d.get(1).succeeded());
+        assertEquals(1, tree.getLostFrameCount());
+    }
+
+    @Test
+    public void batchedRecordsKeepTheirPacketTimes() throws Exception {
+        request("SAMPLING:RATE");
+        int seq_n = held.get(0)[0] & 0xFF;
+        release(0);
+        final List<double[]> got = new ArrayList<>();
+        FloatNotifyHandler h = new FloatNotifyHandler() {
+            @Override
+            public void onFloat(double timestamp_utc, float value) {
+                got.add(new double[]{timestamp_utc, value});
+            }
+        };
+        ConfigTree.ConfigNode ch1 = tree.getNode("CH1:VALUE");
+        ConfigTree.ConfigNode ch2 = tree.getNode("CH2:VALUE");
+        ch1.addNotifyHandler(h);
+        ch2.addNotifyHandler(h);
+        byte[] split = floatRecord(ch2, 2.0f);
+        NotifyHandler serout = tree.getSeroutHandler();
+        serout.onBatchStart();
+        serout.onReceived(10.0, packet(seq_n + 1, floatRecord(ch1, 1.0f), Arrays.copyOfRange(split, 0, 2)));
+        serout.onReceived(11.0, packet(seq_n + 2, Arrays.copyOfRange(split, 2, 5), floatRecord(ch1, 3.0f)));
+        serout.onReceived(12.0, packet(seq_n + 3, floatRecord(ch1, 4.0f)));
+        assertTrue(got.isEmpty());
+        serout.onBatchEnd();
+        // Every sample comes out, stamped with the packet that completed it
+        assertEquals(4, got.size());
+        double[][] want = {{10.0, 1.0f}, {11.0, 2.0f}, {11.0, 3.0f}, {12.0, 4.0f}};
+        for(int i = 0; i < want.length; i++) {
+            assertEquals(want[i][0], got.get(i)[0], 0);
+            assertEquals(want[i][1], got.get(i)[1], 0);
+        }
+    }
+
+    @Test
+    public void resyncsOnRecordBoundaryAfterLoss() throws Exception {
+        tree.setReorderLimits(ConfigTree.REORDER_WINDOW_DEFAULT, 50);
+        request("SAMPLING:RATE");
+        int seq_n = held.get(0)[0] & 0xFF;
+        release(0);
+        ConfigTree.ConfigNode ch1 = tree.getNode("CH1:VALUE");
+        ConfigTree.ConfigNode ch2 = tree.getNode("CH2:VALUE");
+        byte[] split = floatRecord(ch2, 7.0f);
+        byte[] tail  = floatRecord(ch2, 9.0f);
+        // Packet seq_n+2 is lost.  It held the end of one record and the start of the next.
+        lt.deliver(Fixtures.SEROUT, packet(seq_n + 1, floatRecord(ch1, 2.5f), Arrays.copyOfRange(split, 0, 2)));
+        lt.deliver(Fixtures.SEROUT, packet(seq_n + 3, Arrays.copyOfRange(tail, 2, 5), floatRecord(ch1, 3.5f), floatRecord(ch2, 4.5f)));
+        Thread.sleep(300);
+        assertEquals(1, tree.getLostFrameCount());
+        assertEquals(1, tree.getResyncCount());
+        assertEquals(3, tree.getResyncByteCount());
+        assertEquals(3.5f, ch1.getFloatValue(), 0);
+        assertEquals(4.5f, ch2.getFloatValue(), 0);
+    }
+}
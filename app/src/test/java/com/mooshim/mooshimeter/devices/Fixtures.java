@@ -0,0 +1,88 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.mooshim.mooshimeter.common.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.UUID;
+
+import static org.mockito.AdditionalAnswers.returnsLastArg;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Shared setup for the tests that run the protocol stack against a SimulatedMeter.
+ */
+class Fixtures {
+    static final UUID SERIN  = MooshimeterDevice.mUUID.METER_SERIN;
+    static final UUID SEROUT = MooshimeterDevice.mUUID.METER_SEROUT;
+
+    /**
+     * The tree the simulator serves.  Gradle runs unit tests from the module directory.
+     */
+    static byte[] treeBlob() throws IOException {
+        File f = new File("treegen/config_tree.bin");
+        if(!f.exists()) {
+            f = new File("app/treegen/config_tree.bin");
+        }
+        byte[] rval = new byte[(int)f.length()];
+        FileInputStream in = new FileInputStream(f);
+        try {
+            int off = 0;
+            while(off < rval.length) {
+                int n = in.read(rval, off, rval.length - off);
+                if(n < 0) {
+                    throw new IOException("Short read on " + f);
+                }
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return rval;
+    }
+
+    /**
+     * The device layer reads its settings through Util's root context, which only the app sets.
+     * Give it one whose preferences are all defaults.
+     */
+    static void installContext() throws Exception {
+        Context ctx = mock(Context.class);
+        SharedPreferences prefs = mock(SharedPreferences.class, RETURNS_DEEP_STUBS);
+        when(prefs.getString(anyString(), anyString())).then(returnsLastArg());
+        when(prefs.getBoolean(anyString(), anyBoolean())).then(returnsLastArg());
+        when(prefs.getInt(anyString(), anyInt())).then(returnsLastArg());
+        when(prefs.getLong(anyString(), anyLong())).then(returnsLastArg());
+        when(ctx.getSharedPreferences(anyString(), anyInt())).thenReturn(prefs);
+        File cache = File.createTempFile("mooshimeter", "cache");
+        cache.delete();
+        cache.mkdir();
+        cache.deleteOnExit();
+        when(ctx.getCacheDir()).thenReturn(cache);
+        Field f = Util.class.getDeclaredField("mRootContext");
+        f.setAccessible(true);
+        f.set(null, ctx);
+    }
+
+    /**
+     * A tree attached to a simulated meter through a loopback, fully refreshed.
+     */
+    static ConfigTree attachedTree(SimulatedMeter meter) throws Exception {
+        LoopbackTransport lt = new LoopbackTransport(meter, SERIN, SEROUT);
+        ConfigTree tree = new ConfigTree();
+        if(0!=tree.attach(lt, SERIN, SEROUT) || 0!=tree.refreshAll()) {
+            throw new IllegalStateException("Could not attach to the simulated meter");
+        }
+        return tree;
+    }
+}
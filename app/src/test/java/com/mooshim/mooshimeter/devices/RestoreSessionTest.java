@@ -0,0 +1,155 @@
+package com.mooshim.mooshimeter.devices;
+
+import android.bluetooth.BluetoothProfile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RestoreSessionTest {
+    private SimulatedMeter meter;
+    private SimulatedPeripheral p;
+    private MooshimeterDevice d;
+    // Paths written over serin since watching was set
+    private final List<String> written = new ArrayList<>();
+    private volatile boolean watching = false;
+
+    @Before
+    public void setUp() throws Exception {
+        Fixtures.installContext();
+        meter = new SimulatedMeter(Fixtures.treeBlob());
+        p = new SimulatedPeripheral(meter) {
+            @Override
+            public int send(UUID uuid, byte[] value) {
+                if(watching) {
+                    recordWrites(value);
+                }
+                return super.send(uuid, value);
+            }
+        };
+        assertEquals(0, p.connect());
+        assertEquals(0, p.discover());
+        d = new MooshimeterDevice(p);
+        assertEquals(0, d.initialize());
+    }
+    @After
+    public void tearDown() {
+        d.disconnect();
+        meter.shutdown();
+    }
+
+    // Pull the written nodes out of a serin packet: [seq][records...], a write's opcode has 0x80 set
+    private void recordWrites(byte[] packet) {
+        Map<Integer,ConfigTree.ConfigNode> codes = d.tree.getShortCodeMap();
+        int i = 1;
+        while(i < packet.length) {
+            int opcode = packet[i++]&0xFF;
+            if((opcode&0x80)==0) {
+                continue;
+            }
+            ConfigTree.ConfigNode n = codes.get(opcode&0x7F);
+            synchronized (written) {
+                written.add(n.getLongName());
+            }
+            switch(n.ntype) {
+                case ConfigTree.NTYPE.VAL_U16:
+                case ConfigTree.NTYPE.VAL_S16:
+                    i += 2;
+                    break;
+                case ConfigTree.NTYPE.VAL_U32:
+                case ConfigTree.NTYPE.VAL_S32:
+                case ConfigTree.NTYPE.VAL_FLT:
+                    i += 4;
+                    break;
+                default:
+                    i += 1;
+                    break;
+            }
+        }
+    }
+    private List<String> writtenUnder(String prefix) {
+        List<String> rval = new ArrayList<>();
+        synchronized (written) {
+            for(String path : written) {
+                if(path.startsWith(prefix)) {
+                    rval.add(path);
+                }
+            }
+        }
+        return rval;
+    }
+
+    private void dropLinkAndWait() throws Exception {
+        int reconnects = d.getReconnectSupervisor().getReconnectCount();
+        watching = true;
+        meter.setSeroutHandler(null);
+        p.setConnectionState(BluetoothProfile.STATE_DISCONNECTED);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(d.getReconnectSupervisor().getReconnectCount()==reconnects && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(reconnects + 1, d.getReconnectSupervisor().getReconnectCount());
+        assertTrue(p.isConnected());
+    }
+
+    @Test
+    public void settingsSurviveAMeterReboot() throws Exception {
+        d.setSampleRateIndex(1);
+        d.setBufferDepthIndex(1);
+        d.stream();
+        ConfigTree state = meter.getState();
+        int rate  = state.getNode("SAMPLING:RATE").getIntValue();
+        int depth = state.getNode("SAMPLING:DEPTH").getIntValue();
+        int trigger = state.getNode("SAMPLING:TRIGGER").getIntValue();
+        // The meter comes back with its defaults
+        state.getNode("SAMPLING:RATE").setValue(0);
+        state.getNode("SAMPLING:DEPTH").setValue(0);
+        state.getNode("SAMPLING:TRIGGER").setValue(0);
+        dropLinkAndWait();
+        assertEquals(rate, state.getNode("SAMPLING:RATE").getIntValue());
+        assertEquals(depth, state.getNode("SAMPLING:DEPTH").getIntValue());
+        assertEquals(trigger, state.getNode("SAMPLING:TRIGGER").getIntValue());
+    }
+
+    @Test
+    public void remappingOneChannelLeavesTheOtherAlone() throws Exception {
+        ConfigTree state = meter.getState();
+        state.getNode("CH1:MAPPING").setValue(MeterTree.CH1_MAPPING_TEMP);
+        dropLinkAndWait();
+        assertEquals(1, writtenUnder("CH1:MAPPING").size());
+        assertFalse(writtenUnder("CH1:ANALYSIS").isEmpty());
+        assertFalse(writtenUnder("CH1:RANGE_I").isEmpty());
+        assertTrue(writtenUnder("CH2").isEmpty());
+        assertTrue(writtenUnder("SHARED").isEmpty());
+    }
+
+    @Test
+    public void sharedMovingOnlyRewritesChannelsOnShared() throws Exception {
+        assertTrue(d.tree.getNode("CH1:MAPPING").sendIntAsync(MeterTree.CH1_MAPPING_SHARED).await());
+        assertTrue(d.tree.getNode("CH2:MAPPING").sendIntAsync(MeterTree.CH2_MAPPING_VOLTAGE).await());
+        ConfigTree.ConfigNode shared = meter.getState().getNode("SHARED");
+        shared.setValue((shared.getIntValue()+1) % shared.children.size());
+        dropLinkAndWait();
+        assertEquals(1, writtenUnder("SHARED").size());
+        assertTrue(writtenUnder("CH1:MAPPING").isEmpty());
+        assertFalse(writtenUnder("CH1:RANGE_I").isEmpty());
+        assertTrue(writtenUnder("CH2").isEmpty());
+    }
+
+    @Test
+    public void reconnectIsCheaperThanAFullInit() throws Exception {
+        int full = meter.getRecordsReceived();
+        int before = meter.getRecordsReceived();
+        dropLinkAndWait();
+        assertTrue(meter.getRecordsReceived() - before < full / 2);
+    }
+}
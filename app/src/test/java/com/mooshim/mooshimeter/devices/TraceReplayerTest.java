@@ -0,0 +1,57 @@
+package com.mooshim.mooshimeter.devices;
+
+import com.mooshim.mooshimeter.interfaces.FloatNotifyHandler;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records a streaming session off the simulator and plays it back in to a fresh tree at full
+ * speed, which also gives a rough figure for decode and dispatch throughput.
+ */
+public class TraceReplayerTest {
+    private static class Counter extends FloatNotifyHandler {
+        int n = 0;
+        @Override
+        public void onFloat(double timestamp_utc, float value) {
+            n++;
+        }
+    }
+
+    @Test
+    public void replayDecodesWhatWasRecorded() throws Exception {
+        SimulatedMeter meter = new SimulatedMeter(Fixtures.treeBlob());
+        File trace = File.createTempFile("mooshimeter", ".trace");
+        trace.deleteOnExit();
+        Counter live = new Counter();
+        try {
+            ConfigTree tree = Fixtures.attachedTree(meter);
+            tree.getNode("CH2:VALUE").addNotifyHandler(live);
+            assertEquals(0, tree.startTrace(trace));
+            meter.setSpeed(50);
+            tree.command("SAMPLING:TRIGGER 2");
+            Thread.sleep(500);
+            tree.command("SAMPLING:TRIGGER 0");
+            tree.stopTrace();
+        } finally {
+            meter.shutdown();
+        }
+        assertTrue(live.n > 0);
+
+        TraceReplayer replayer = new TraceReplayer(trace);
+        ConfigTree replayed = new ConfigTree();
+        assertEquals(0, replayer.prepare(replayed));
+        Counter played = new Counter();
+        replayed.getNode("CH2:VALUE").addNotifyHandler(played);
+        TraceReplayer.Stats stats = replayer.replay(replayed, TraceReplayer.MAX_SPEED);
+        assertEquals(replayer.getPacketCount(), stats.packets);
+        assertTrue(stats.bytes >= stats.packets);
+        assertTrue(stats.elapsed_ns > 0);
+        assertEquals(live.n, played.n);
+        assertEquals(0, replayed.getLostFrameCount());
+    }
+}
@@ -0,0 +1,260 @@
+package com.mooshim.treegen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Generates a typed facade over ConfigTree from a captured ADMIN:TREE blob (the same zlib
+ * compressed tree the meter sends us).  Every node with a shortcode gets a NodeHandle field,
+ * a typed getter, a typed setter and a request method, so the app code doesn't have to build
+ * command strings and typos in paths become compile errors.  Choices under CHOOSER nodes become
+ * int constants and the shortcodes of the captured tree are kept as CODE_ constants.
+ *
+ * Runs from the generateTreeAccessors task in app/build.gradle, or by hand:
+ *   java com.mooshim.treegen.TreeCodegen blob out_dir package class_name
+ */
+public class TreeCodegen {
+    // Must match ConfigTree.NTYPE
+    private static final int CHOOSER = 2;
+    private static final int VAL_U8  = 3;
+    private static final int VAL_S32 = 8;
+    private static final int VAL_STR = 9;
+    private static final int VAL_BIN = 10;
+    private static final int VAL_FLT = 11;
+    private static final String[] TYPE_NAMES = {
+            "PLAIN","LINK","CHOOSER","VAL_U8","VAL_U16","VAL_U32","VAL_S8","VAL_S16","VAL_S32","VAL_STR","VAL_BIN","VAL_FLT"
+    };
+
+    private static class Node {
+        int ntype;
+        String name;
+        String path;
+        int code = -1;
+        List<Node> children = new ArrayList<>();
+    }
+
+    private final byte[] plain;
+    private int pos = 0;
+    private int next_code = 0;
+    private final List<Node> coded = new ArrayList<>();
+
+    private TreeCodegen(byte[] plain_arg) {
+        plain = plain_arg;
+    }
+
+    // Same layout and shortcode rules as ConfigTree.unpack
+    private Node read(String prefix) throws DataFormatException {
+        if(pos+2 > plain.length) {
+            throw new DataFormatException("Truncated tree");
+        }
+        Node n = new Node();
+        n.ntype = plain[pos++];
+        int nlen = plain[pos++]&0xFF;
+        if(pos+nlen+1 > plain.length) {
+            throw new DataFormatException("Truncated tree");
+        }
+        n.name = new String(plain, pos, nlen, StandardCharsets.US_ASCII);
+        pos += nlen;
+        int n_children = plain[pos++]&0xFF;
+        n.path = prefix.length()==0 ? n.name : prefix + ":" + n.name;
+        if(n.ntype>=CHOOSER) {
+            n.code = next_code++;
+            coded.add(n);
+        }
+        for(int i = 0; i < n_children; i++) {
+            n.children.add(read(n.path));
+        }
+        return n;
+    }
+
+    private static byte[] inflate(byte[] compressed) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[512];
+        while(!inflater.finished()) {
+            int n = inflater.inflate(chunk);
+            if(n==0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Truncated tree blob");
+            }
+            out.write(chunk, 0, n);
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+
+    //////////////////
+    // Naming
+    //////////////////
+
+    private static String constName(String path) {
+        return path.replaceAll("[^A-Za-z0-9]", "_").toUpperCase();
+    }
+    private static String camel(String path) {
+        StringBuilder rval = new StringBuilder();
+        for(String word:path.split("[^A-Za-z0-9]+")) {
+            if(word.length()==0) {
+                continue;
+            }
+            rval.append(Character.toUpperCase(word.charAt(0)));
+            rval.append(word.substring(1).toLowerCase());
+        }
+        return rval.toString();
+    }
+    private static String fieldName(String path) {
+        String c = camel(path);
+        return Character.toLowerCase(c.charAt(0)) + c.substring(1);
+    }
+
+    //////////////////
+    // Output
+    //////////////////
+
+    private String generate(String pkg, String cls, String source_name, int crc) throws DataFormatException {
+        Set<String> used = new HashSet<>();
+        StringBuilder b = new StringBuilder();
+        b.append("// GENERATED from ").append(source_name).append(" by TreeCodegen, do not edit.\n");
+        b.append("package ").append(pkg).append(";\n\n");
+        b.append("import com.mooshim.mooshimeter.common.Deferred;\n\n");
+        b.append("/**\n");
+        b.append(" * Typed accessors for the config tree with CRC32 0x").append(Integer.toHexString(crc)).append(".\n");
+        b.append(" * Nodes are bound by path through NodeHandles, so this still works against a different tree.\n");
+        b.append(" * Accessors for paths the connected meter doesn't have return 0/null or a failed Deferred.\n");
+        b.append(" */\n");
+        b.append("public class ").append(cls).append(" {\n");
+        b.append("    public static final int TREE_CRC32 = 0x").append(Integer.toHexString(crc)).append(";\n\n");
+
+        b.append("    // Shortcodes in the captured tree, only valid when matchesTree() is true\n");
+        for(Node n:coded) {
+            String c = "CODE_" + constName(n.path);
+            claim(used, c);
+            b.append("    public static final int ").append(c).append(" = ").append(n.code).append(";\n");
+        }
+        for(Node n:coded) {
+            if(n.ntype!=CHOOSER) {
+                continue;
+            }
+            b.append("\n    // Choices for ").append(n.path).append("\n");
+            for(int i = 0; i < n.children.size(); i++) {
+                String c = constName(n.children.get(i).path);
+                claim(used, c);
+                b.append("    public static final int ").append(c).append(" = ").append(i).append(";\n");
+            }
+        }
+
+        b.append("\n    private final ConfigTree tree;\n");
+        for(Node n:coded) {
+            String f = fieldName(n.path);
+            claim(used, f);
+            b.append("    public final ConfigTree.NodeHandle ").append(f).append(";\n");
+        }
+
+        b.append("\n    public ").append(cls).append("(ConfigTree tree_arg) {\n");
+        b.append("        tree = tree_arg;\n");
+        for(Node n:coded) {
+            b.append("        ").append(fieldName(n.path)).append(" = tree.getHandle(\"").append(n.path).append("\");\n");
+        }
+        b.append("    }\n\n");
+
+        b.append("    /**\n");
+        b.append("     * @return true if the connected meter has exactly the tree this was generated from\n");
+        b.append("     */\n");
+        b.append("    public boolean matchesTree() {\n");
+        b.append("        return adminCrc32.getIntValue()==TREE_CRC32;\n");
+        b.append("    }\n");
+
+        for(Node n:coded) {
+            String f = fieldName(n.path);
+            String m = camel(n.path);
+            b.append("\n    // ").append(n.path).append(" (").append(TYPE_NAMES[n.ntype]).append(")\n");
+            b.append("    public Deferred<Object> req").append(m).append("() {\n");
+            b.append("        return ").append(f).append(".reqValueAsync();\n");
+            b.append("    }\n");
+            if(n.ntype==CHOOSER || (n.ntype>=VAL_U8 && n.ntype<=VAL_S32)) {
+                b.append("    public int get").append(m).append("() {\n");
+                b.append("        return ").append(f).append(".getIntValue();\n");
+                b.append("    }\n");
+                b.append("    public Deferred<Object> set").append(m).append("(int val) {\n");
+                b.append("        return ").append(f).append(".sendIntAsync(val);\n");
+                b.append("    }\n");
+            } else if(n.ntype==VAL_FLT) {
+                b.append("    public float get").append(m).append("() {\n");
+                b.append("        return ").append(f).append(".getFloatValue();\n");
+                b.append("    }\n");
+                b.append("    public Deferred<Object> set").append(m).append("(float val) {\n");
+                b.append("        return ").append(f).append(".sendFloatAsync(val);\n");
+                b.append("    }\n");
+            } else if(n.ntype==VAL_STR) {
+                b.append("    public String get").append(m).append("() {\n");
+                b.append("        Object v = ").append(f).append(".getValue();\n");
+                b.append("        return v instanceof String ? (String)v : null;\n");
+                b.append("    }\n");
+                b.append("    public Deferred<Object> set").append(m).append("(String val) {\n");
+                b.append("        return ").append(f).append(".sendValueAsync(val);\n");
+                b.append("    }\n");
+            } else if(n.ntype==VAL_BIN) {
+                b.append("    public byte[] get").append(m).append("() {\n");
+                b.append("        Object v = ").append(f).append(".getValue();\n");
+                b.append("        return v instanceof byte[] ? (byte[])v : null;\n");
+                b.append("    }\n");
+            }
+        }
+        b.append("}\n");
+        return b.toString();
+    }
+    private static void claim(Set<String> used, String name) throws DataFormatException {
+        if(!used.add(name)) {
+            throw new DataFormatException("Generated name collision: " + name);
+        }
+    }
+
+    /**
+     * Generate out_dir/<pkg path>/<cls>.java from the compressed tree in blob
+     */
+    public static File generate(File blob, File out_dir, String pkg, String cls) throws IOException, DataFormatException {
+        byte[] compressed = Files.readAllBytes(blob.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(compressed);
+        TreeCodegen gen = new TreeCodegen(inflate(compressed));
+        gen.read("");
+        if(gen.pos!=gen.plain.length) {
+            throw new DataFormatException("Trailing bytes after tree");
+        }
+        String src = gen.generate(pkg, cls, blob.getName(), (int)crc.getValue());
+
+        File dir = new File(out_dir, pkg.replace('.', File.separatorChar));
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create " + dir);
+        }
+        File out = new File(dir, cls + ".java");
+        Writer w = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+        try {
+            w.write(src);
+        } finally {
+            w.close();
+        }
+        return out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length!=4) {
+            System.err.println("usage: TreeCodegen blob out_dir package class_name");
+            System.exit(1);
+        }
+        File out = generate(new File(args[0]), new File(args[1]), args[2], args[3]);
+        System.out.println("Wrote " + out);
+    }
+}